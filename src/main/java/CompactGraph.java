@@ -0,0 +1,399 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frozen road graph in compressed-sparse-row form. Vertices are dense int indices
+ * ordered by their OSM id, so the original id of vertex i is ids[i] and the id to index
+ * lookup is a binary search. The undirected edges of vertex i are stored twice, once per
+ * endpoint, in the slice [offsets[i], offsets[i + 1]) of the edge columns.
+ * Only vertices that lie on a road or carry a location name survive the freeze, and each
+ * is labelled with its connected component so that unreachable targets are known upfront.
+ * The columns are buffers so that they can either wrap heap arrays or point straight into
+ * a memory-mapped {@link GraphSnapshot}; all reads use absolute gets and are thread safe.
+ */
+class CompactGraph {
+    final LongBuffer ids;
+    final DoubleBuffer lats;
+    final DoubleBuffer lons;
+    final IntBuffer offsets;
+    final IntBuffer targets;
+    final DoubleBuffer lengths;
+    final IntBuffer ways;
+    final String[] wayNames;
+    final IntBuffer components;
+    private final int size;
+    private final int routable;
+
+    CompactGraph(LongBuffer ids, DoubleBuffer lats, DoubleBuffer lons, IntBuffer offsets,
+                 IntBuffer targets, DoubleBuffer lengths, IntBuffer ways, String[] wayNames,
+                 IntBuffer components) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.lengths = lengths;
+        this.ways = ways;
+        this.wayNames = wayNames;
+        this.components = components;
+        this.size = ids.limit();
+        int count = 0;
+        for (int v = 0; v < size; v++) {
+            if (offsets.get(v + 1) > offsets.get(v)) {
+                count++;
+            }
+        }
+        this.routable = count;
+    }
+
+    /** Number of vertices, routable or not. */
+    int size() {
+        return size;
+    }
+
+    /** Number of edge slots, i.e. twice the number of undirected edges. */
+    int edgeSlots() {
+        return targets.limit();
+    }
+
+    /** Number of vertices with at least one road edge. */
+    int routableSize() {
+        return routable;
+    }
+
+    /** Returns the index of the vertex with OSM id, or -1 if there is none. */
+    int index(long id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    long id(int v) {
+        return ids.get(v);
+    }
+
+    double lat(int v) {
+        return lats.get(v);
+    }
+
+    double lon(int v) {
+        return lons.get(v);
+    }
+
+    /** First edge slot of vertex v. */
+    int begin(int v) {
+        return offsets.get(v);
+    }
+
+    /** One past the last edge slot of vertex v. */
+    int end(int v) {
+        return offsets.get(v + 1);
+    }
+
+    int degree(int v) {
+        return offsets.get(v + 1) - offsets.get(v);
+    }
+
+    int target(int e) {
+        return targets.get(e);
+    }
+
+    /** Great-circle length of edge e in miles. */
+    double length(int e) {
+        return lengths.get(e);
+    }
+
+    /** Name of the way edge e belongs to, or null if the way is unnamed. */
+    String wayName(int e) {
+        int w = ways.get(e);
+        return w < 0 ? null : wayNames[w];
+    }
+
+    /** Returns the edge slot from v to w, or -1 if they are not adjacent. */
+    int edge(int v, int w) {
+        for (int e = begin(v); e < end(v); e++) {
+            if (targets.get(e) == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /** Label of the connected component of vertex v. */
+    int component(int v) {
+        return components.get(v);
+    }
+
+    /** True if there is a road path between vertices v and w. */
+    boolean connected(int v, int w) {
+        return components.get(v) == components.get(w);
+    }
+
+    /** Great-circle distance between vertices v and w in miles. */
+    double distance(int v, int w) {
+        return GraphDB.distanceHelper(lat(v), lat(w), lon(v), lon(w));
+    }
+
+    /**
+     * Accumulates vertices and edges while the OSM file is being parsed, using growable
+     * primitive columns instead of per-vertex objects, and freezes them into a CompactGraph.
+     */
+    static class Builder {
+        private long[] nodeIds = new long[1024];
+        private double[] nodeLats = new double[1024];
+        private double[] nodeLons = new double[1024];
+        private int nodeCount = 0;
+        private boolean sorted = true;
+
+        private int[] edgeFrom = new int[1024];
+        private int[] edgeTo = new int[1024];
+        private int[] edgeWay = new int[1024];
+        private int edgeCount = 0;
+
+        private long[] named = new long[64];
+        private int namedCount = 0;
+
+        private final Map<String, Integer> wayIndex = new HashMap<>();
+        private final List<String> wayNames = new ArrayList<>();
+
+        void addNode(long id, double lon, double lat) {
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+                nodeLats = Arrays.copyOf(nodeLats, nodeCount * 2);
+                nodeLons = Arrays.copyOf(nodeLons, nodeCount * 2);
+            }
+            if (nodeCount > 0 && nodeIds[nodeCount - 1] >= id) {
+                sorted = false;
+            }
+            nodeIds[nodeCount] = id;
+            nodeLats[nodeCount] = lat;
+            nodeLons[nodeCount] = lon;
+            nodeCount++;
+        }
+
+        /** Marks the node as carrying a location name so that it survives the freeze. */
+        void markNamed(long id) {
+            if (namedCount == named.length) {
+                named = Arrays.copyOf(named, namedCount * 2);
+            }
+            named[namedCount++] = id;
+        }
+
+        /** Connects nodes v and w in both directions; edges to unknown nodes are dropped. */
+        void addEdge(long v, long w, String way) {
+            int a = lookup(v);
+            int b = lookup(w);
+            if (a < 0 || b < 0 || a == b) {
+                return;
+            }
+            if (edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+                edgeWay = Arrays.copyOf(edgeWay, edgeCount * 2);
+            }
+            edgeFrom[edgeCount] = a;
+            edgeTo[edgeCount] = b;
+            edgeWay[edgeCount] = internWay(way);
+            edgeCount++;
+        }
+
+        private int internWay(String way) {
+            if (way == null) {
+                return -1;
+            }
+            Integer i = wayIndex.get(way);
+            if (i == null) {
+                i = wayNames.size();
+                wayIndex.put(way, i);
+                wayNames.add(way);
+            }
+            return i;
+        }
+
+        private int lookup(long id) {
+            if (!sorted) {
+                sortNodes();
+            }
+            int i = Arrays.binarySearch(nodeIds, 0, nodeCount, id);
+            return i < 0 ? -1 : i;
+        }
+
+        /** Sorts the node columns by id. Only needed for files whose nodes are out of order. */
+        private void sortNodes() {
+            long[] sortedIds = Arrays.copyOf(nodeIds, nodeCount);
+            Arrays.sort(sortedIds);
+            double[] lats = new double[nodeIds.length];
+            double[] lons = new double[nodeIds.length];
+            for (int i = 0; i < nodeCount; i++) {
+                int to = Arrays.binarySearch(sortedIds, nodeIds[i]);
+                lats[to] = nodeLats[i];
+                lons[to] = nodeLons[i];
+            }
+            System.arraycopy(sortedIds, 0, nodeIds, 0, nodeCount);
+            nodeLats = lats;
+            nodeLons = lons;
+            sorted = true;
+        }
+
+        /**
+         * Freezes the accumulated nodes and edges. Parallel edges between the same pair of
+         * vertices collapse into one that keeps the way name seen last, and vertices with no
+         * edges and no location name are dropped.
+         */
+        CompactGraph build() {
+            if (!sorted) {
+                sortNodes();
+            }
+            /* Bucket both directions of every edge by source vertex. */
+            int[] start = new int[nodeCount + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                start[edgeFrom[i] + 1]++;
+                start[edgeTo[i] + 1]++;
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                start[v + 1] += start[v];
+            }
+            int[] fill = Arrays.copyOf(start, nodeCount);
+            int[] slotTarget = new int[edgeCount * 2];
+            int[] slotEdge = new int[edgeCount * 2];
+            for (int i = 0; i < edgeCount; i++) {
+                int a = fill[edgeFrom[i]]++;
+                slotTarget[a] = edgeTo[i];
+                slotEdge[a] = i;
+                int b = fill[edgeTo[i]]++;
+                slotTarget[b] = edgeFrom[i];
+                slotEdge[b] = i;
+            }
+
+            /* Collapse parallel edges; slots are already in insertion order per vertex. */
+            int[] degree = new int[nodeCount];
+            for (int v = 0; v < nodeCount; v++) {
+                int lo = start[v];
+                int hi = start[v + 1];
+                for (int i = lo + 1; i < hi; i++) {
+                    int t = slotTarget[i];
+                    int e = slotEdge[i];
+                    int j = i - 1;
+                    while (j >= lo && slotTarget[j] > t) {
+                        slotTarget[j + 1] = slotTarget[j];
+                        slotEdge[j + 1] = slotEdge[j];
+                        j--;
+                    }
+                    slotTarget[j + 1] = t;
+                    slotEdge[j + 1] = e;
+                }
+                int out = lo;
+                for (int i = lo; i < hi; i++) {
+                    if (i + 1 < hi && slotTarget[i + 1] == slotTarget[i]) {
+                        continue;
+                    }
+                    slotTarget[out] = slotTarget[i];
+                    slotEdge[out] = slotEdge[i];
+                    out++;
+                }
+                degree[v] = out - lo;
+            }
+
+            boolean[] keep = new boolean[nodeCount];
+            for (int i = 0; i < namedCount; i++) {
+                int v = Arrays.binarySearch(nodeIds, 0, nodeCount, named[i]);
+                if (v >= 0) {
+                    keep[v] = true;
+                }
+            }
+            int[] remap = new int[nodeCount];
+            int n = 0;
+            int m = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                if (degree[v] > 0 || keep[v]) {
+                    remap[v] = n++;
+                    m += degree[v];
+                } else {
+                    remap[v] = -1;
+                }
+            }
+
+            long[] ids = new long[n];
+            double[] lats = new double[n];
+            double[] lons = new double[n];
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            double[] lengths = new double[m];
+            int[] ways = new int[m];
+            int e = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                int u = remap[v];
+                if (u < 0) {
+                    continue;
+                }
+                ids[u] = nodeIds[v];
+                lats[u] = nodeLats[v];
+                lons[u] = nodeLons[v];
+                offsets[u] = e;
+                for (int i = start[v]; i < start[v] + degree[v]; i++) {
+                    int w = slotTarget[i];
+                    targets[e] = remap[w];
+                    lengths[e] = GraphDB.distanceHelper(nodeLats[v], nodeLats[w],
+                            nodeLons[v], nodeLons[w]);
+                    ways[e] = edgeWay[slotEdge[i]];
+                    e++;
+                }
+            }
+            offsets[n] = e;
+            return new CompactGraph(LongBuffer.wrap(ids), DoubleBuffer.wrap(lats),
+                    DoubleBuffer.wrap(lons), IntBuffer.wrap(offsets), IntBuffer.wrap(targets),
+                    DoubleBuffer.wrap(lengths), IntBuffer.wrap(ways),
+                    wayNames.toArray(new String[0]),
+                    IntBuffer.wrap(label(n, offsets, targets)));
+        }
+
+        /**
+         * Labels the connected components of the frozen adjacency with breadth-first
+         * searches, numbering them 0, 1, ... in order of their smallest vertex.
+         */
+        private static int[] label(int n, int[] offsets, int[] targets) {
+            int[] labels = new int[n];
+            Arrays.fill(labels, -1);
+            int[] queue = new int[n];
+            int count = 0;
+            for (int s = 0; s < n; s++) {
+                if (labels[s] >= 0) {
+                    continue;
+                }
+                int head = 0;
+                int tail = 0;
+                labels[s] = count;
+                queue[tail++] = s;
+                while (head < tail) {
+                    int v = queue[head++];
+                    for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                        int w = targets[e];
+                        if (labels[w] < 0) {
+                            labels[w] = count;
+                            queue[tail++] = w;
+                        }
+                    }
+                }
+                count++;
+            }
+            return labels;
+        }
+    }
+}
@@ -0,0 +1,561 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Contraction Hierarchy over a CompactGraph. Preprocessing contracts the vertices one by one
+ * in order of importance, adding a shortcut u-w whenever contracting v would otherwise
+ * destroy the only shortest path u-v-w. Afterwards every vertex keeps only its edges to
+ * higher ranked vertices, and a shortest path query is a bidirectional Dijkstra that only
+ * ever goes upward in rank. Shortcuts remember the vertex they bypass, so paths unpack
+ * back into original road edges.
+ *
+ * Run main to preprocess the Berkeley graph offline and write the hierarchy next to the
+ * graph snapshot, where MapServer picks it up.
+ */
+class ContractionHierarchy {
+    /** The bytes "BMCH1" and three zeros, read as a little-endian long. */
+    private static final long MAGIC = 0x3148434d42L;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    /** Witness searches give up after settling this many vertices and add the shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private static final String OSM_DB_PATH = "../data/berkeley-2018.osm.xml";
+    private static final String GRAPH_SNAPSHOT_PATH = "../data/berkeley-2018.graph";
+    static final String HIERARCHY_PATH = "../data/berkeley-2018.ch";
+
+    private final int[] rank;
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final int[] upMiddles;
+    private final double[] upWeights;
+    private final long fingerprint;
+
+    private ContractionHierarchy(int[] rank, int[] upOffsets, int[] upTargets, int[] upMiddles,
+                                 double[] upWeights, long fingerprint) {
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upMiddles = upMiddles;
+        this.upWeights = upWeights;
+        this.fingerprint = fingerprint;
+    }
+
+    public static void main(String[] args) throws IOException {
+        GraphDB g = GraphDB.load(OSM_DB_PATH, GRAPH_SNAPSHOT_PATH);
+        long start = System.currentTimeMillis();
+        ContractionHierarchy ch = build(g.compact(), Runtime.getRuntime().availableProcessors());
+        System.out.println("Contracted " + ch.rank.length + " vertices, "
+                + ch.upTargets.length + " upward edges, in "
+                + (System.currentTimeMillis() - start) + " ms.");
+        ch.write(new File(HIERARCHY_PATH));
+    }
+
+    /** Number of upward edges, original and shortcut. */
+    int upwardEdges() {
+        return upTargets.length;
+    }
+
+    /**
+     * Shortest path between vertex indices start and end, or an empty array if there is
+     * none. The two search spaces hold the upward searches from either end.
+     */
+    long[] shortestPath(CompactGraph g, int start, int end,
+                        SearchSpace forward, SearchSpace backward) {
+        return shortestPath(g, start, end, forward, backward, SearchBudget.unlimited());
+    }
+
+    /** Shortest path as above, giving up with an empty array once budget is exceeded. */
+    long[] shortestPath(CompactGraph g, int start, int end,
+                        SearchSpace forward, SearchSpace backward, SearchBudget budget) {
+        forward.reset();
+        backward.reset();
+        forward.open(start, 0, -1, 0);
+        backward.open(end, 0, -1, 0);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        boolean isForward = true;
+        while (true) {
+            boolean forwardLive = !forward.heap.isEmpty() && forward.heap.minKey() < best;
+            boolean backwardLive = !backward.heap.isEmpty() && backward.heap.minKey() < best;
+            if (!forwardLive && !backwardLive) {
+                break;
+            }
+            isForward = forwardLive && (!backwardLive || !isForward);
+            SearchSpace sp = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+
+            int v = sp.settleNext();
+            if (budget.exceeded(forward.settledCount + backward.settledCount)) {
+                return new long[0];
+            }
+            if (other.reached(v) && sp.dist[v] + other.dist[v] < best) {
+                best = sp.dist[v] + other.dist[v];
+                meet = v;
+            }
+            double dv = sp.dist[v];
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+                int w = upTargets[e];
+                double dw = dv + upWeights[e];
+                if (!sp.reached(w)) {
+                    sp.open(w, dw, v, 0);
+                } else if (!sp.settled(w) && dw < sp.dist[w]) {
+                    sp.relax(w, dw, v);
+                }
+            }
+        }
+        if (meet < 0) {
+            return new long[0];
+        }
+
+        /* Collect the upward path start .. meet .. end, then unpack every shortcut on it. */
+        int head = 0;
+        for (int v = meet; v >= 0; v = forward.parent[v]) {
+            head++;
+        }
+        int length = head;
+        for (int v = backward.parent[meet]; v >= 0; v = backward.parent[v]) {
+            length++;
+        }
+        int[] packed = new int[length];
+        for (int v = meet, i = head - 1; v >= 0; v = forward.parent[v], i--) {
+            packed[i] = v;
+        }
+        for (int v = backward.parent[meet], i = head; v >= 0; v = backward.parent[v], i++) {
+            packed[i] = v;
+        }
+
+        int[] out = new int[Math.max(16, packed.length * 2)];
+        int size = 0;
+        out[size++] = packed[0];
+        int[] stack = new int[32];
+        for (int i = 1; i < packed.length; i++) {
+            int top = 0;
+            stack[top++] = packed[i - 1];
+            stack[top++] = packed[i];
+            while (top > 0) {
+                int b = stack[--top];
+                int a = stack[--top];
+                int middle = upMiddles[upEdge(a, b)];
+                if (middle < 0) {
+                    if (size == out.length) {
+                        out = Arrays.copyOf(out, size * 2);
+                    }
+                    out[size++] = b;
+                } else {
+                    if (top + 4 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = middle;
+                    stack[top++] = b;
+                    stack[top++] = a;
+                    stack[top++] = middle;
+                }
+            }
+        }
+        long[] path = new long[size];
+        for (int i = 0; i < size; i++) {
+            path[i] = g.id(out[i]);
+        }
+        return path;
+    }
+
+    /** The upward edge between a and b, stored with whichever of the two ranks lower. */
+    private int upEdge(int a, int b) {
+        int low = rank[a] < rank[b] ? a : b;
+        int high = low == a ? b : a;
+        for (int e = upOffsets[low]; e < upOffsets[low + 1]; e++) {
+            if (upTargets[e] == high) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("Hierarchy has no edge " + a + "-" + b);
+    }
+
+    /** True if this hierarchy was built from a graph with the same vertices and edges as g. */
+    boolean matches(CompactGraph g) {
+        return fingerprint == fingerprint(g);
+    }
+
+    /**
+     * Hash of the vertex ids, coordinates and adjacency of g and of its edge lengths, used to
+     * pair hierarchies with graphs. A node that moves changes the hash even if the roads
+     * stay connected the same way.
+     */
+    static long fingerprint(CompactGraph g) {
+        long h = 0xcbf29ce484222325L;
+        for (int v = 0; v < g.size(); v++) {
+            h = (h ^ g.id(v)) * 0x100000001b3L;
+            h = (h ^ g.end(v)) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(g.lon(v))) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(g.lat(v))) * 0x100000001b3L;
+        }
+        for (int e = 0; e < g.edgeSlots(); e++) {
+            h = (h ^ g.target(e)) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(g.length(e))) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Loads the hierarchy stored at path for g. If there is none, or it belongs to a
+     * different graph, builds one when build is set and returns null otherwise.
+     */
+    static ContractionHierarchy load(CompactGraph g, String path, boolean build) {
+        File file = new File(path);
+        try {
+            ContractionHierarchy ch = read(file);
+            if (ch != null && ch.matches(g)) {
+                return ch;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!build) {
+            return null;
+        }
+        ContractionHierarchy ch = build(g, Runtime.getRuntime().availableProcessors());
+        try {
+            ch.write(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ch;
+    }
+
+    void write(File file) throws IOException {
+        int n = rank.length;
+        int m = upTargets.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 8 * m + 4 * (2 * n + 1 + 2 * m))
+                .order(ORDER);
+        buf.putLong(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(n);
+        buf.putInt(m);
+        buf.putInt(0);
+        buf.putLong(fingerprint);
+        for (double w : upWeights) {
+            buf.putDouble(w);
+        }
+        for (int r : rank) {
+            buf.putInt(r);
+        }
+        for (int o : upOffsets) {
+            buf.putInt(o);
+        }
+        for (int t : upTargets) {
+            buf.putInt(t);
+        }
+        for (int mid : upMiddles) {
+            buf.putInt(mid);
+        }
+        buf.flip();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reads a hierarchy written by write, or returns null if there is no current one. */
+    static ContractionHierarchy read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        map.order(ORDER);
+        if (map.limit() < HEADER_BYTES || map.getLong(0) != MAGIC
+                || map.getInt(8) != VERSION) {
+            return null;
+        }
+        int n = map.getInt(12);
+        int m = map.getInt(16);
+        long fingerprint = map.getLong(24);
+        map.position(HEADER_BYTES);
+        double[] upWeights = new double[m];
+        map.asDoubleBuffer().get(upWeights);
+        map.position(HEADER_BYTES + 8 * m);
+        int[] ints = new int[2 * n + 1 + 2 * m];
+        map.asIntBuffer().get(ints);
+        return new ContractionHierarchy(Arrays.copyOfRange(ints, 0, n),
+                Arrays.copyOfRange(ints, n, 2 * n + 1),
+                Arrays.copyOfRange(ints, 2 * n + 1, 2 * n + 1 + m),
+                Arrays.copyOfRange(ints, 2 * n + 1 + m, ints.length), upWeights, fingerprint);
+    }
+
+    /**
+     * Contracts every vertex of g. A vertex's priority is twice its edge difference
+     * (shortcuts added minus edges removed) plus the number of its already contracted
+     * neighbours, which spreads contraction evenly; priorities are kept up to date lazily.
+     * The initial witness searches for all vertices run on the given number of worker
+     * threads.
+     */
+    static ContractionHierarchy build(CompactGraph g, int threads) {
+        Contractor c = new Contractor(g);
+        int n = g.size();
+        double[] priority = c.initialPriorities(Math.max(1, threads));
+        IndexedMinHeap queue = new IndexedMinHeap(n);
+        for (int v = 0; v < n; v++) {
+            queue.push(v, priority[v]);
+        }
+
+        SearchSpace ws = new SearchSpace(n);
+        int[] rank = new int[n];
+        int[][] upTargets = new int[n][];
+        int[][] upMiddles = new int[n][];
+        double[][] upWeights = new double[n][];
+        int next = 0;
+        while (!queue.isEmpty()) {
+            int v = queue.pop();
+            double current = c.priority(v, ws);
+            if (!queue.isEmpty() && current > queue.minKey()) {
+                queue.push(v, current);
+                continue;
+            }
+            rank[v] = next++;
+            upTargets[v] = Arrays.copyOf(c.nbr[v], c.deg[v]);
+            upMiddles[v] = Arrays.copyOf(c.mid[v], c.deg[v]);
+            upWeights[v] = Arrays.copyOf(c.wt[v], c.deg[v]);
+            c.contract(v, ws);
+            for (int u : upTargets[v]) {
+                queue.update(u, c.priority(u, ws));
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] = offsets[v] + upTargets[v].length;
+        }
+        int[] targets = new int[offsets[n]];
+        int[] middles = new int[offsets[n]];
+        double[] weights = new double[offsets[n]];
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+            System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+            System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+        }
+        return new ContractionHierarchy(rank, offsets, targets, middles, weights,
+                fingerprint(g));
+    }
+
+    /**
+     * The remaining graph during preprocessing. Each uncontracted vertex keeps growable
+     * lists of its uncontracted neighbours with edge weight and the bypassed vertex of
+     * shortcut edges (-1 for road edges).
+     */
+    private static class Contractor {
+        final int[][] nbr;
+        final double[][] wt;
+        final int[][] mid;
+        final int[] deg;
+        final int[] deleted;
+        final boolean[] contracted;
+
+        /* Scratch space for the shortcuts found while simulating a contraction. */
+        private int[] shortcutFrom = new int[16];
+        private int[] shortcutTo = new int[16];
+        private double[] shortcutWeight = new double[16];
+        private int shortcuts;
+
+        Contractor(CompactGraph g) {
+            int n = g.size();
+            nbr = new int[n][];
+            wt = new double[n][];
+            mid = new int[n][];
+            deg = new int[n];
+            deleted = new int[n];
+            contracted = new boolean[n];
+            for (int v = 0; v < n; v++) {
+                int d = g.degree(v);
+                nbr[v] = new int[Math.max(d, 2)];
+                wt[v] = new double[Math.max(d, 2)];
+                mid[v] = new int[Math.max(d, 2)];
+                for (int e = g.begin(v); e < g.end(v); e++) {
+                    nbr[v][deg[v]] = g.target(e);
+                    wt[v][deg[v]] = g.length(e);
+                    mid[v][deg[v]] = -1;
+                    deg[v]++;
+                }
+            }
+        }
+
+        /** Simulates contracting every vertex, splitting the work across worker threads. */
+        double[] initialPriorities(int threads) {
+            int n = deg.length;
+            double[] priority = new double[n];
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> parts = new ArrayList<>();
+                int chunk = (n + threads - 1) / threads;
+                for (int t = 0; t < threads; t++) {
+                    int lo = t * chunk;
+                    int hi = Math.min(n, lo + chunk);
+                    parts.add(pool.submit(() -> {
+                        SearchSpace ws = new SearchSpace(n);
+                        for (int v = lo; v < hi; v++) {
+                            priority[v] = 2 * (countShortcuts(v, ws) - deg[v]);
+                        }
+                    }));
+                }
+                for (Future<?> part : parts) {
+                    part.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Contraction preprocessing failed", e);
+            } finally {
+                pool.shutdown();
+            }
+            return priority;
+        }
+
+        double priority(int v, SearchSpace ws) {
+            return 2 * (countShortcuts(v, ws) - deg[v]) + deleted[v];
+        }
+
+        /** Counts the shortcuts contracting v would need, without recording them. */
+        private int countShortcuts(int v, SearchSpace ws) {
+            return witnessSearches(v, ws, false);
+        }
+
+        /** Removes v from the remaining graph, adding the shortcuts it needs. */
+        void contract(int v, SearchSpace ws) {
+            witnessSearches(v, ws, true);
+            for (int i = 0; i < shortcuts; i++) {
+                connect(shortcutFrom[i], shortcutTo[i], shortcutWeight[i], v);
+                connect(shortcutTo[i], shortcutFrom[i], shortcutWeight[i], v);
+            }
+            for (int i = 0; i < deg[v]; i++) {
+                int u = nbr[v][i];
+                remove(u, v);
+                deleted[u]++;
+            }
+            contracted[v] = true;
+        }
+
+        /**
+         * For every pair of neighbours u, w of v, looks for a path u-w that avoids v and is
+         * no longer than u-v-w. Returns how many pairs have none and so need a shortcut;
+         * when record is set, the shortcuts are also kept in the scratch arrays.
+         */
+        private int witnessSearches(int v, SearchSpace ws, boolean record) {
+            if (record) {
+                shortcuts = 0;
+            }
+            int count = 0;
+            /* The last neighbour has no pair left; pairs joined by zero-length edges still
+               need their (zero-limit) search, or no shortcut would replace them. */
+            for (int i = 0; i < deg[v] - 1; i++) {
+                int u = nbr[v][i];
+                double maxVia = 0;
+                for (int j = i + 1; j < deg[v]; j++) {
+                    maxVia = Math.max(maxVia, wt[v][i] + wt[v][j]);
+                }
+                witnessSearch(u, v, maxVia, ws);
+                for (int j = i + 1; j < deg[v]; j++) {
+                    int w = nbr[v][j];
+                    double via = wt[v][i] + wt[v][j];
+                    if (ws.reached(w) && ws.dist[w] <= via) {
+                        continue;
+                    }
+                    count++;
+                    if (record) {
+                        addShortcut(u, w, via);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /** Dijkstra from u in the remaining graph without v, up to distance limit. */
+        private void witnessSearch(int u, int v, double limit, SearchSpace ws) {
+            ws.reset();
+            ws.open(u, 0, -1, 0);
+            while (!ws.heap.isEmpty() && ws.heap.minKey() <= limit
+                    && ws.settledCount < WITNESS_SETTLE_LIMIT) {
+                int x = ws.settleNext();
+                double dx = ws.dist[x];
+                for (int i = 0; i < deg[x]; i++) {
+                    int y = nbr[x][i];
+                    if (y == v) {
+                        continue;
+                    }
+                    double dy = dx + wt[x][i];
+                    if (!ws.reached(y)) {
+                        ws.open(y, dy, x, 0);
+                    } else if (!ws.settled(y) && dy < ws.dist[y]) {
+                        ws.relax(y, dy, x);
+                    }
+                }
+            }
+        }
+
+        private void addShortcut(int u, int w, double weight) {
+            if (shortcuts == shortcutFrom.length) {
+                shortcutFrom = Arrays.copyOf(shortcutFrom, shortcuts * 2);
+                shortcutTo = Arrays.copyOf(shortcutTo, shortcuts * 2);
+                shortcutWeight = Arrays.copyOf(shortcutWeight, shortcuts * 2);
+            }
+            shortcutFrom[shortcuts] = u;
+            shortcutTo[shortcuts] = w;
+            shortcutWeight[shortcuts] = weight;
+            shortcuts++;
+        }
+
+        /** Adds or shortens the edge u-w in u's list. */
+        private void connect(int u, int w, double weight, int middle) {
+            for (int i = 0; i < deg[u]; i++) {
+                if (nbr[u][i] == w) {
+                    if (weight < wt[u][i]) {
+                        wt[u][i] = weight;
+                        mid[u][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (deg[u] == nbr[u].length) {
+                nbr[u] = Arrays.copyOf(nbr[u], deg[u] * 2);
+                wt[u] = Arrays.copyOf(wt[u], deg[u] * 2);
+                mid[u] = Arrays.copyOf(mid[u], deg[u] * 2);
+            }
+            nbr[u][deg[u]] = w;
+            wt[u][deg[u]] = weight;
+            mid[u][deg[u]] = middle;
+            deg[u]++;
+        }
+
+        /** Drops w from u's list. */
+        private void remove(int u, int w) {
+            for (int i = 0; i < deg[u]; i++) {
+                if (nbr[u][i] == w) {
+                    deg[u]--;
+                    nbr[u][i] = nbr[u][deg[u]];
+                    wt[u][i] = wt[u][deg[u]];
+                    mid[u][i] = mid[u][deg[u]];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -40,7 +40,7 @@ public class GraphBuildingHandler extends DefaultHandler {
                     "secondary_link", "tertiary_link"));
     private String activeState = "";
     private final GraphDB g;
-    private GraphDB.Vertex currentVertex;
+    private long currentNodeId;
     private List<Long> tempConnectionList = new ArrayList<>();
 
     public GraphBuildingHandler(GraphDB g) {
@@ -76,7 +76,7 @@ public class GraphBuildingHandler extends DefaultHandler {
             double lon = Double.parseDouble(attributes.getValue("lon"));
             double lat = Double.parseDouble(attributes.getValue("lat"));
             g.addVertex(id, lon, lat);
-            currentVertex = g.getVertex(id);
+            currentNodeId = id;
             /* TODO Use the above information to save a "node" to somewhere. */
             /* Hint: A graph-like structure would be nice. */
 
@@ -125,7 +125,7 @@ public class GraphBuildingHandler extends DefaultHandler {
             last node that you looked at (check the first if-case). */
 //            System.out.println("Node's name: " + attributes.getValue("v"));
             String locName = GraphDB.cleanString(attributes.getValue("v"));
-            currentVertex.setLoc(locName);
+            g.addLocation(currentNodeId, locName);
             activeState = "";
         }
     }
@@ -8,10 +8,14 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -23,12 +27,29 @@ import java.util.Map;
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
-    HashMap<Long, Vertex> vertexRefs = new HashMap<>();
-    HashSet<Long> cleanThese = new HashSet<>();
     Way nextWay = null;
     private Tries locTrie = new Tries();
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
+    /** Word index over the location names, built once the graph is frozen. */
+    private LocationIndex locIndex;
+    /** The cleaned location names, in order. */
+    private List<String> locNames;
+    /**
+     * Spatial index over the named nodes, built once the graph is frozen. Its items are
+     * entries: entry e is node namedIds[e], carrying name locNames.get(namedNames[e]).
+     */
+    private KdTree namedIndex;
+    private long[] namedIds;
+    private int[] namedNames;
+    /** Collects the parsed nodes and edges; dropped once the graph is frozen. */
+    private CompactGraph.Builder builder = new CompactGraph.Builder();
+    /** The frozen road graph every query runs on. */
+    private CompactGraph graph;
+    /** Spatial index over the routable vertices, used to snap points onto the graph. */
+    private KdTree routableIndex;
+    /** Optional shortcut hierarchy for Router.Mode.CH, attached after loading. */
+    private ContractionHierarchy hierarchy;
+    /** Optional landmark distances for Router.Mode.ALT, attached after loading. */
+    private Landmarks landmarks;
 
     /**
      * Example constructor shows how to create and start an XML parser.
@@ -48,7 +69,65 @@ public class GraphDB {
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
-//        clean();
+        clean();
+    }
+
+    /** Wraps an already frozen graph and builds its indexes. */
+    GraphDB(CompactGraph graph, Tries locTrie) {
+        this.graph = graph;
+        this.locTrie = locTrie;
+        this.builder = null;
+        this.routableIndex = buildRoutableIndex();
+        buildLocationIndexes();
+    }
+
+    /** Wraps a graph mapped from a {@link GraphSnapshot}, reading back its built indexes. */
+    GraphDB(CompactGraph graph, GraphSnapshot.In indexes) {
+        this.graph = graph;
+        this.builder = null;
+        this.locTrie = new Tries(indexes);
+        this.locIndex = new LocationIndex(indexes);
+        this.locNames = locIndex.names();
+        this.namedIndex = new KdTree(indexes);
+        this.namedIds = indexes.getLongs();
+        this.namedNames = indexes.getInts();
+        this.routableIndex = new KdTree(indexes);
+    }
+
+    /** Writes the indexes built over the frozen graph, in the order the constructor reads. */
+    void writeIndexes(GraphSnapshot.Out out) {
+        locTrie.write(out);
+        locIndex.write(out);
+        namedIndex.write(out);
+        out.putLongs(namedIds);
+        out.putInts(namedNames);
+        routableIndex.write(out);
+    }
+
+    /**
+     * Loads the graph from the binary snapshot at snapshotPath if it is current, and
+     * otherwise parses the XML file at dbPath and writes a fresh snapshot for the next boot.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param snapshotPath Path of the binary snapshot to map or create.
+     */
+    static GraphDB load(String dbPath, String snapshotPath) {
+        File source = new File(dbPath);
+        File snapshot = new File(snapshotPath);
+        try {
+            GraphDB g = GraphSnapshot.read(source, snapshot);
+            if (g != null) {
+                return g;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        GraphDB g = new GraphDB(dbPath);
+        try {
+            GraphSnapshot.write(g, source, snapshot);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return g;
     }
 
     /**
@@ -64,23 +143,114 @@ public class GraphDB {
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  Named nodes are kept for location search, but are not routable.
      */
     private void clean() {
-        for (long v : cleanThese) {
-            vertexRefs.remove(v);
+        graph = builder.build();
+        builder = null;
+        routableIndex = buildRoutableIndex();
+        buildLocationIndexes();
+    }
+
+    private void buildLocationIndexes() {
+        locNames = locTrie.keysWithPrefix("");
+        locIndex = new LocationIndex(locNames);
+        List<List<Long>> ids = new ArrayList<>(locNames.size());
+        int n = 0;
+        for (String name : locNames) {
+            ids.add(locTrie.getNodeByLoc(name));
+            n += ids.get(ids.size() - 1).size();
+        }
+        int[] items = new int[n];
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        namedIds = new long[n];
+        namedNames = new int[n];
+        int e = 0;
+        for (int name = 0; name < ids.size(); name++) {
+            for (long id : ids.get(name)) {
+                items[e] = e;
+                lons[e] = lon(id);
+                lats[e] = lat(id);
+                namedIds[e] = id;
+                namedNames[e] = name;
+                e++;
+            }
+        }
+        namedIndex = new KdTree(items, lons, lats);
+    }
+
+    private KdTree buildRoutableIndex() {
+        int n = graph.routableSize();
+        int[] items = new int[n];
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int i = 0;
+        for (int v = 0; v < graph.size(); v++) {
+            if (graph.degree(v) > 0) {
+                items[i] = v;
+                lons[i] = graph.lon(v);
+                lats[i] = graph.lat(v);
+                i++;
+            }
+        }
+        return new KdTree(items, lons, lats);
+    }
+
+    /** Returns the frozen compressed-sparse-row graph. */
+    CompactGraph compact() {
+        return graph;
+    }
+
+    /** Returns the contraction hierarchy of this graph, or null if none is attached. */
+    ContractionHierarchy hierarchy() {
+        return hierarchy;
+    }
+
+    void setHierarchy(ContractionHierarchy hierarchy) {
+        if (hierarchy != null && !hierarchy.matches(graph)) {
+            throw new IllegalArgumentException("Hierarchy was built for a different graph");
         }
-        cleanThese.clear();
+        this.hierarchy = hierarchy;
+    }
+
+    /** Returns the landmark distances of this graph, or null if none are attached. */
+    Landmarks landmarks() {
+        return landmarks;
+    }
+
+    void setLandmarks(Landmarks landmarks) {
+        this.landmarks = landmarks;
     }
 
-    /** Returns an iterable of all vertex IDs in the graph. */
+    /** Returns the dense index of vertex v, failing if v is not in the graph. */
+    private int index(long v) {
+        int i = graph.index(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("No vertex with id " + v);
+        }
+        return i;
+    }
+
+    /** Returns an iterable of all routable vertex IDs in the graph. */
     Iterable<Long> vertices() {
-        return vertexRefs.keySet();
+        List<Long> ids = new ArrayList<>(graph.routableSize());
+        for (int v = 0; v < graph.size(); v++) {
+            if (graph.degree(v) > 0) {
+                ids.add(graph.id(v));
+            }
+        }
+        return ids;
     }
 
     /** Returns ids of all vertices adjacent to v. */
     Iterable<Long> adjacent(long v) {
-        Vertex vertex = vertexRefs.get(v);
-        return vertex.adj.keySet();
+        int i = index(v);
+        List<Long> ids = new ArrayList<>(graph.degree(i));
+        for (int e = graph.begin(i); e < graph.end(i); e++) {
+            ids.add(graph.id(graph.target(e)));
+        }
+        return ids;
     }
 
     /**
@@ -97,7 +267,7 @@ public class GraphDB {
         return distanceHelper(lat1, lat2, lon1, lon2);
     }
 
-    private double distanceHelper(double lat1, double lat2, double lon1, double lon2) {
+    static double distanceHelper(double lat1, double lat2, double lon1, double lon2) {
         double phi1 = Math.toRadians(lat1);
         double phi2 = Math.toRadians(lat2);
         double dphi = Math.toRadians(lat2 - lat1);
@@ -128,44 +298,48 @@ public class GraphDB {
 
     /** Returns the vertex id closest to the given longitude and latitude. */
     long closest(double lon, double lat) {
-        double min = Double.POSITIVE_INFINITY;
-        long closest = -1;
-        for (long v : vertices()) {
-            if (distanceHelper(lat, lat(v), lon, lon(v)) < min) {
-                closest = v;
-                min = distanceHelper(lat, lat(v), lon, lon(v));
-            }
+        int v = closestIndex(lon, lat);
+        return v < 0 ? -1 : graph.id(v);
+    }
+
+    /** Returns the index of the routable vertex closest to the given point, or -1. */
+    int closestIndex(double lon, double lat) {
+        return routableIndex.nearest(lon, lat);
+    }
+
+    /** Returns the ids of the k routable vertices closest to the given point, closest first. */
+    long[] closest(double lon, double lat, int k) {
+        int[] nearest = routableIndex.nearest(lon, lat, k);
+        long[] ids = new long[nearest.length];
+        for (int i = 0; i < nearest.length; i++) {
+            ids[i] = graph.id(nearest[i]);
         }
-        return closest;
+        return ids;
     }
 
     /** Longitude of vertex v. */
     double lon(long v) {
-        return vertexRefs.get(v).lon;
+        return graph.lon(index(v));
     }
 
     /** Latitude of vertex v. */
     double lat(long v) {
-        return vertexRefs.get(v).lat;
+        return graph.lat(index(v));
     }
 
-    void addVertex(long id, double lon, double lat) {
-        Vertex v = new Vertex(id, lon, lat);
-        vertexRefs.put(id, v);
-        cleanThese.add(id);
+    /** Name of the way connecting v and w, or null if it is unnamed or there is none. */
+    String wayName(long v, long w) {
+        int e = graph.edge(index(v), index(w));
+        return e < 0 ? null : graph.wayName(e);
     }
 
-    Vertex getVertex(long id) {
-        return vertexRefs.get(id);
+    void addVertex(long id, double lon, double lat) {
+        builder.addNode(id, lon, lat);
     }
 
-    void addEdge(long v, long w, String way) {
-        Vertex a = vertexRefs.get(v);
-        Vertex b = vertexRefs.get(w);
-        a.connect(b, way);
-        b.connect(a, way);
-        cleanThese.remove(a.id);
-        cleanThese.remove(b.id);
+    void addLocation(long id, String locName) {
+        builder.markNamed(id);
+        locTrie.put(locName, id);
     }
 
     void processNextWay() {
@@ -173,7 +347,7 @@ public class GraphDB {
             while (nextWay.toConnect.size() > 1) {
                 long first = nextWay.toConnect.removeFirst();
                 long second = nextWay.toConnect.peekFirst();
-                addEdge(first, second, nextWay.name);
+                builder.addEdge(first, second, nextWay.name);
             }
         }
     }
@@ -183,12 +357,40 @@ public class GraphDB {
     }
 
     List<Map<String, Object>> getNodesByLocName(String locName) {
-        List<Map<String, Object>> r = new ArrayList<>();
         List<Long> nodesID = locTrie.getNodeByLoc(locName);
-        System.out.println(nodesID);
-        System.out.println(vertexRefs.containsKey(nodesID.get(0)));
+        return nodesID == null ? new ArrayList<>() : describeNodes(nodesID, locName);
+    }
+
+    /**
+     * Like getNodesByLocName, but returns only the at most limit nodes nearest to (lon, lat),
+     * nearest first. Common names are looked up through the spatial index over the named
+     * nodes, stopping at the limit.
+     */
+    List<Map<String, Object>> getNodesByLocNameNear(String locName, int limit, double lon,
+                                                    double lat) {
+        List<Long> nodesID = locTrie.getNodeByLoc(locName);
+        if (nodesID == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        if (nodesID.size() <= limit) {
+            nodesID.sort(Comparator.comparingDouble(id -> distanceHelper(lat, lat(id), lon,
+                    lon(id))));
+            return describeNodes(nodesID, locName);
+        }
+        int name = Collections.binarySearch(locNames, locName);
+        List<Long> nearest = new ArrayList<>(limit);
+        namedIndex.nearestFirst(lon, lat, (entry, distance) -> {
+            if (namedNames[entry] == name) {
+                nearest.add(namedIds[entry]);
+            }
+            return nearest.size() < limit;
+        });
+        return describeNodes(nearest, locName);
+    }
+
+    private List<Map<String, Object>> describeNodes(List<Long> nodesID, String locName) {
+        List<Map<String, Object>> r = new ArrayList<>();
         for (long id : nodesID) {
-            System.out.println(id);
             Map<String, Object> n = new HashMap<>();
             n.put("lat", lat(id));
             n.put("lon", lon(id));
@@ -199,31 +401,98 @@ public class GraphDB {
         return r;
     }
 
+    /** Returns every cleaned location name in the graph. */
+    List<String> locationNames() {
+        return locTrie.keysWithPrefix("");
+    }
+
+    /** Returns the ids of the nodes carrying the cleaned location name. */
+    List<Long> locationIds(String locName) {
+        return locTrie.getNodeByLoc(locName);
+    }
+
     List<String> getLocationsByPrefix(String prefix) {
         return locTrie.keysWithPrefix(cleanString(prefix));
     }
 
-    public class Vertex {
-        long id;
-        double lon, lat;
-        HashMap<Long, Vertex> adj;
-        Map<Long, String> adjWay;
-
-        public Vertex(long id, double lon, double lat) {
-            this.id = id;
-            this.lon = lon;
-            this.lat = lat;
-            adj = new HashMap<>();
-            adjWay = new HashMap<>();
+    /**
+     * Returns at most limit cleaned location names matching prefix: first the best ranked
+     * names starting with it, then names with words matching it (see LocationIndex), then
+     * names starting with a near miss of it, found within fuzzyVisits trie nodes.
+     */
+    List<String> getLocationsByPrefix(String prefix, int limit, int fuzzyVisits) {
+        String cleaned = cleanString(prefix);
+        Set<String> matches = new LinkedHashSet<>(locTrie.keysWithPrefix(cleaned, limit));
+        addUpTo(matches, locIndex.search(cleaned, limit), limit);
+        int edits = maxEdits(cleaned.length());
+        if (matches.size() < limit && edits > 0) {
+            addUpTo(matches, locTrie.fuzzyKeysWithPrefix(cleaned, edits, limit, fuzzyVisits),
+                    limit);
         }
+        return new ArrayList<>(matches);
+    }
 
-        void connect(Vertex o, String way) {
-            adj.put(o.id, o);
-            adjWay.put(o.id, way);
+    /**
+     * Returns at most limit cleaned location names matching prefix, as getLocationsByPrefix
+     * finds them, ranked for a user looking at (lon, lat). A name scores its place among the
+     * Tries.TOP_K best text matches plus the distance of its nearest node in units of
+     * biasMiles, and the lowest scores come first. Named nodes are visited nearest first,
+     * and the visit stops once limit names score below anything not yet reached.
+     */
+    List<String> getLocationsNear(String prefix, int limit, int fuzzyVisits, double lon,
+                                  double lat, double biasMiles) {
+        List<String> candidates = getLocationsByPrefix(prefix, Tries.TOP_K, fuzzyVisits);
+        Map<Integer, Integer> ranks = new HashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            ranks.put(Collections.binarySearch(locNames, candidates.get(i)), i);
+        }
+        double[] scores = new double[candidates.size()];
+        Arrays.fill(scores, Double.POSITIVE_INFINITY);
+        int[] reached = {0};
+        if (!candidates.isEmpty()) {
+            namedIndex.nearestFirst(lon, lat, (entry, distance) -> {
+                Integer rank = ranks.get(namedNames[entry]);
+                if (rank != null && scores[rank] == Double.POSITIVE_INFINITY) {
+                    scores[rank] = rank + distance / biasMiles;
+                    reached[0]++;
+                }
+                if (reached[0] == scores.length) {
+                    return false;
+                }
+                /* Names not yet reached score at least this. */
+                double floor = distance / biasMiles;
+                int settled = 0;
+                for (double score : scores) {
+                    if (score <= floor) {
+                        settled++;
+                    }
+                }
+                return settled < limit;
+            });
+        }
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
         }
+        Arrays.sort(order, Comparator.comparingDouble(i -> scores[i]));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < order.length && i < limit; i++) {
+            result.add(candidates.get(order[i]));
+        }
+        return result;
+    }
 
-        public void setLoc(String locName) {
-            locTrie.put(locName, this.id);
+    /** Typos allowed in a search prefix of the given length: none in very short ones. */
+    static int maxEdits(int length) {
+        return length < 3 ? 0 : length < 6 ? 1 : 2;
+    }
+
+    private static void addUpTo(Set<String> matches, List<String> more, int limit) {
+        for (String name : more) {
+            if (matches.size() >= limit) {
+                return;
+            }
+            matches.add(name);
         }
     }
 
@@ -8,9 +8,10 @@ import java.util.ArrayList;
  */
 public class GraphDBLauncher {
     private static final String OSM_DB_PATH = "../data/berkeley-2018.osm.xml";
+    private static final String GRAPH_SNAPSHOT_PATH = "../data/berkeley-2018.graph";
 
     public static void main(String[] args) {
-        GraphDB g = new GraphDB(OSM_DB_PATH);
+        GraphDB g = GraphDB.load(OSM_DB_PATH, GRAPH_SNAPSHOT_PATH);
 
         Iterable<Long> verticesIterable = g.vertices();
 
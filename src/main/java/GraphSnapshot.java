@@ -0,0 +1,302 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Versioned binary snapshot of a frozen GraphDB. The file starts with a fixed header,
+ * followed by the CompactGraph columns in little-endian order, each 8-byte aligned, a
+ * string section holding the way names, and an index section holding the built location
+ * trie, word index and spatial indexes (see GraphDB.writeIndexes).
+ * Loading maps the file read-only and hands slices of the mapping to CompactGraph, so the
+ * graph columns are never copied onto the heap. The indexes are bulk-copied out of the
+ * mapping into their arrays, never rebuilt.
+ */
+class GraphSnapshot {
+    /** The bytes "BMGRAPH1", read as a little-endian long. */
+    private static final long MAGIC = 0x3148504152474d42L;
+    /** Bump whenever the layout below changes; older snapshots are then rebuilt. */
+    static final int VERSION = 3;
+    private static final int HEADER_BYTES = 64;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Writes g to file. The source file's length and modification time are recorded so a
+     * later load can tell that the OSM data has changed underneath the snapshot.
+     */
+    static void write(GraphDB g, File source, File file) throws IOException {
+        CompactGraph cg = g.compact();
+        int n = cg.size();
+        int m = cg.edgeSlots();
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(strings);
+        out.writeInt(cg.wayNames.length);
+        for (String way : cg.wayNames) {
+            out.writeUTF(way);
+        }
+        out.flush();
+        Out indexes = new Out();
+        g.writeIndexes(indexes);
+        ByteBuffer index = indexes.flip();
+
+        long stringsOffset = align(HEADER_BYTES + 8L * (3L * n + m)
+                + 4L * (2L * n + 1 + 2L * m));
+        long indexOffset = align(stringsOffset + strings.size());
+        ByteBuffer buf = ByteBuffer.allocate((int) indexOffset + index.remaining()).order(ORDER);
+        buf.putLong(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(n);
+        buf.putInt(m);
+        buf.putInt(0);
+        buf.putLong(source.length());
+        buf.putLong(source.lastModified());
+        buf.putLong(stringsOffset);
+        buf.putLong(indexOffset);
+        buf.position(HEADER_BYTES);
+        for (int v = 0; v < n; v++) {
+            buf.putLong(cg.ids.get(v));
+        }
+        for (int v = 0; v < n; v++) {
+            buf.putDouble(cg.lats.get(v));
+        }
+        for (int v = 0; v < n; v++) {
+            buf.putDouble(cg.lons.get(v));
+        }
+        for (int e = 0; e < m; e++) {
+            buf.putDouble(cg.lengths.get(e));
+        }
+        for (int v = 0; v <= n; v++) {
+            buf.putInt(cg.offsets.get(v));
+        }
+        for (int e = 0; e < m; e++) {
+            buf.putInt(cg.targets.get(e));
+        }
+        for (int e = 0; e < m; e++) {
+            buf.putInt(cg.ways.get(e));
+        }
+        for (int v = 0; v < n; v++) {
+            buf.putInt(cg.components.get(v));
+        }
+        buf.position((int) stringsOffset);
+        buf.put(strings.toByteArray());
+        buf.position((int) indexOffset);
+        buf.put(index);
+        buf.flip();
+
+        /* Write next to the target and rename, so a concurrent boot never maps half a file. */
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps file and returns the graph it holds, or null if the file is missing, was written
+     * by another format version, or is older than source.
+     */
+    static GraphDB read(File source, File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        map.order(ORDER);
+        if (map.limit() < HEADER_BYTES || map.getLong(0) != MAGIC
+                || map.getInt(8) != VERSION) {
+            return null;
+        }
+        int n = map.getInt(12);
+        int m = map.getInt(16);
+        if (source.isFile() && (map.getLong(24) != source.length()
+                || map.getLong(32) != source.lastModified())) {
+            return null;
+        }
+        long stringsOffset = map.getLong(40);
+        long indexOffset = map.getLong(48);
+
+        long at = HEADER_BYTES;
+        ByteBuffer ids = slice(map, at, 8L * n);
+        at += 8L * n;
+        ByteBuffer lats = slice(map, at, 8L * n);
+        at += 8L * n;
+        ByteBuffer lons = slice(map, at, 8L * n);
+        at += 8L * n;
+        ByteBuffer lengths = slice(map, at, 8L * m);
+        at += 8L * m;
+        ByteBuffer offsets = slice(map, at, 4L * (n + 1));
+        at += 4L * (n + 1);
+        ByteBuffer targets = slice(map, at, 4L * m);
+        at += 4L * m;
+        ByteBuffer ways = slice(map, at, 4L * m);
+        at += 4L * m;
+        ByteBuffer components = slice(map, at, 4L * n);
+
+        byte[] strings = new byte[(int) (indexOffset - stringsOffset)];
+        ByteBuffer stringSection = map.duplicate();
+        stringSection.position((int) stringsOffset);
+        stringSection.get(strings);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(strings));
+        String[] wayNames = new String[in.readInt()];
+        for (int i = 0; i < wayNames.length; i++) {
+            wayNames[i] = in.readUTF();
+        }
+        CompactGraph cg = new CompactGraph(ids.asLongBuffer(), lats.asDoubleBuffer(),
+                lons.asDoubleBuffer(), offsets.asIntBuffer(), targets.asIntBuffer(),
+                lengths.asDoubleBuffer(), ways.asIntBuffer(), wayNames,
+                components.asIntBuffer());
+        return new GraphDB(cg, new In(slice(map, indexOffset, map.limit() - indexOffset)));
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, long offset, long bytes) {
+        ByteBuffer dup = map.duplicate();
+        dup.position((int) offset);
+        dup.limit((int) (offset + bytes));
+        return dup.slice().order(ORDER);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Growable little-endian buffer the indexes write themselves to. Arrays are written
+     * as their length followed by their elements, and string arrays as their characters
+     * packed end to end followed by where each string ends.
+     */
+    static final class Out {
+        private ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ORDER);
+
+        void putInt(int x) {
+            reserve(4);
+            buf.putInt(x);
+        }
+
+        void putInts(int[] a) {
+            reserve(4 + 4L * a.length);
+            buf.putInt(a.length);
+            buf.asIntBuffer().put(a);
+            buf.position(buf.position() + 4 * a.length);
+        }
+
+        void putLongs(long[] a) {
+            reserve(4 + 8L * a.length);
+            buf.putInt(a.length);
+            buf.asLongBuffer().put(a);
+            buf.position(buf.position() + 8 * a.length);
+        }
+
+        void putDoubles(double[] a) {
+            reserve(4 + 8L * a.length);
+            buf.putInt(a.length);
+            buf.asDoubleBuffer().put(a);
+            buf.position(buf.position() + 8 * a.length);
+        }
+
+        void putChars(char[] a) {
+            reserve(4 + 2L * a.length);
+            buf.putInt(a.length);
+            buf.asCharBuffer().put(a);
+            buf.position(buf.position() + 2 * a.length);
+        }
+
+        void putStrings(String[] a) {
+            int[] ends = new int[a.length];
+            StringBuilder chars = new StringBuilder();
+            for (int i = 0; i < a.length; i++) {
+                chars.append(a[i]);
+                ends[i] = chars.length();
+            }
+            char[] packed = new char[chars.length()];
+            chars.getChars(0, packed.length, packed, 0);
+            putChars(packed);
+            putInts(ends);
+        }
+
+        private void reserve(long bytes) {
+            if (buf.remaining() < bytes) {
+                long capacity = Math.max(buf.position() + bytes, 2L * buf.capacity());
+                if (capacity > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Snapshot indexes exceed 2 GB");
+                }
+                ByteBuffer grown = ByteBuffer.allocate((int) capacity).order(ORDER);
+                buf.flip();
+                grown.put(buf);
+                buf = grown;
+            }
+        }
+
+        private ByteBuffer flip() {
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /** Reads back, in the same order, what an Out was given. */
+    static final class In {
+        private final ByteBuffer buf;
+
+        private In(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        int getInt() {
+            return buf.getInt();
+        }
+
+        int[] getInts() {
+            int[] a = new int[buf.getInt()];
+            buf.asIntBuffer().get(a);
+            buf.position(buf.position() + 4 * a.length);
+            return a;
+        }
+
+        long[] getLongs() {
+            long[] a = new long[buf.getInt()];
+            buf.asLongBuffer().get(a);
+            buf.position(buf.position() + 8 * a.length);
+            return a;
+        }
+
+        double[] getDoubles() {
+            double[] a = new double[buf.getInt()];
+            buf.asDoubleBuffer().get(a);
+            buf.position(buf.position() + 8 * a.length);
+            return a;
+        }
+
+        char[] getChars() {
+            char[] a = new char[buf.getInt()];
+            buf.asCharBuffer().get(a);
+            buf.position(buf.position() + 2 * a.length);
+            return a;
+        }
+
+        String[] getStrings() {
+            char[] chars = getChars();
+            int[] ends = getInts();
+            String[] a = new String[ends.length];
+            for (int i = 0; i < a.length; i++) {
+                int start = i == 0 ? 0 : ends[i - 1];
+                a[i] = new String(chars, start, ends[i] - start);
+            }
+            return a;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Binary min-heap of int items in [0, capacity) keyed by doubles, with decrease-key.
+ * Each item's heap position is tracked in a flat array, so every operation is allocation
+ * free. The heap does not remember which items it holds between clears; callers decide
+ * whether to push or decrease, as Router's search spaces do with their generation stamps.
+ */
+class IndexedMinHeap {
+    private final int[] heap;
+    private final double[] keys;
+    private final int[] pos;
+    private int size = 0;
+
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        pos = new int[capacity];
+    }
+
+    int capacity() {
+        return pos.length;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /** Key of the minimum item. The heap must not be empty. */
+    double minKey() {
+        return keys[0];
+    }
+
+    /** Inserts item, which must not already be in the heap. */
+    void push(int item, double key) {
+        int i = size++;
+        heap[i] = item;
+        keys[i] = key;
+        pos[item] = i;
+        siftUp(i);
+    }
+
+    /** Lowers the key of item, which must be in the heap, to key. */
+    void decrease(int item, double key) {
+        int i = pos[item];
+        keys[i] = key;
+        siftUp(i);
+    }
+
+    /** Changes the key of item, which must be in the heap, in either direction. */
+    void update(int item, double key) {
+        int i = pos[item];
+        keys[i] = key;
+        siftUp(i);
+        siftDown(pos[item]);
+    }
+
+    /** Removes and returns the item with the smallest key. */
+    int pop() {
+        int top = heap[0];
+        size--;
+        if (size > 0) {
+            move(heap[size], keys[size], 0);
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int i) {
+        int item = heap[i];
+        double key = keys[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            move(heap[parent], keys[parent], i);
+            i = parent;
+        }
+        move(item, key, i);
+    }
+
+    private void siftDown(int i) {
+        int item = heap[i];
+        double key = keys[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (keys[child] >= key) {
+                break;
+            }
+            move(heap[child], keys[child], i);
+            i = child;
+        }
+        move(item, key, i);
+    }
+
+    private void move(int item, double key, int i) {
+        heap[i] = item;
+        keys[i] = key;
+        pos[item] = i;
+    }
+}
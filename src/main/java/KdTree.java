@@ -0,0 +1,271 @@
+import java.util.PriorityQueue;
+
+/**
+ * Static 2-d tree over points given in longitude and latitude, built once and queried for
+ * the nearest or k nearest points by great-circle distance. The tree is implicit: the
+ * points are permuted so that the median of every range [lo, hi) sits at (lo + hi) / 2,
+ * splitting on longitude at even depths and on latitude at odd ones.
+ * Subtrees are pruned with exact lower bounds on the great-circle distance to the far side
+ * of a split, so results match a linear haversine scan. Ties go to the smaller item.
+ * Items can also be visited in order of distance, best first, for as long as the caller
+ * wants more of them.
+ */
+class KdTree {
+    /** Earth radius in miles, matching GraphDB.distanceHelper. */
+    private static final double R = 3963;
+    /** Slack so that rounding in a lower bound can never prune an exact tie. */
+    private static final double BOUND_SLACK = 1 - 1e-9;
+
+    private final int[] items;
+    private final double[] lons;
+    private final double[] lats;
+
+    /**
+     * Builds a tree over items, where item i lies at (lons[i], lats[i]). The arrays are
+     * copied, so the caller may reuse them.
+     */
+    KdTree(int[] items, double[] lons, double[] lats) {
+        this.items = items.clone();
+        this.lons = lons.clone();
+        this.lats = lats.clone();
+        build(0, items.length, 0);
+    }
+
+    /** Reads back a tree written by write, already in tree order. */
+    KdTree(GraphSnapshot.In in) {
+        items = in.getInts();
+        lons = in.getDoubles();
+        lats = in.getDoubles();
+    }
+
+    void write(GraphSnapshot.Out out) {
+        out.putInts(items);
+        out.putDoubles(lons);
+        out.putDoubles(lats);
+    }
+
+    int size() {
+        return items.length;
+    }
+
+    /** Returns the item nearest to the given point, or -1 if the tree is empty. */
+    int nearest(double lon, double lat) {
+        int[] result = nearest(lon, lat, 1);
+        return result.length == 0 ? -1 : result[0];
+    }
+
+    /** Returns up to k items nearest to the given point, closest first. */
+    int[] nearest(double lon, double lat, int k) {
+        Query q = new Query(lon, lat, Math.min(k, items.length));
+        if (q.capacity > 0) {
+            search(q, 0, items.length, 0);
+        }
+        return q.sorted();
+    }
+
+    /** Receives items in order of distance. */
+    interface Visitor {
+        /** Takes the next item and its distance in miles; returns false to stop. */
+        boolean visit(int item, double distance);
+    }
+
+    /**
+     * Hands the items to visitor closest first, until it returns false or every item has
+     * been visited. Only the subtrees that may hold the next item are opened, so stopping
+     * early leaves most of the tree untouched.
+     */
+    void nearestFirst(double lon, double lat, Visitor visitor) {
+        /* Entries are {distance, -1, position} for items and {bound, lo, hi, depth} for
+           ranges; at equal keys, items come first. */
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0]
+                ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+        if (items.length > 0) {
+            queue.add(new double[]{0, 0, items.length, 0});
+        }
+        while (!queue.isEmpty()) {
+            double[] e = queue.poll();
+            if (e[1] < 0) {
+                if (!visitor.visit(items[(int) e[2]], e[0])) {
+                    return;
+                }
+                continue;
+            }
+            int lo = (int) e[1];
+            int hi = (int) e[2];
+            int depth = (int) e[3];
+            int mid = (lo + hi) >>> 1;
+            queue.add(new double[]{GraphDB.distanceHelper(lat, lats[mid], lon, lons[mid]), -1,
+                mid});
+            double diff = (depth & 1) == 0 ? lon - lons[mid] : lat - lats[mid];
+            double far = Math.max(e[0], bound(lon, lat, mid, depth) * BOUND_SLACK);
+            if (lo < mid) {
+                queue.add(new double[]{diff < 0 ? e[0] : far, lo, mid, depth + 1});
+            }
+            if (mid + 1 < hi) {
+                queue.add(new double[]{diff < 0 ? far : e[0], mid + 1, hi, depth + 1});
+            }
+        }
+    }
+
+    /** Lower bound on the distance from the point to the far side of the split at mid. */
+    private double bound(double lon, double lat, int mid, int depth) {
+        if ((depth & 1) == 0) {
+            double dlambda = Math.toRadians(Math.abs(lon - lons[mid]));
+            /* Cross-track distance from the point to the splitting meridian. */
+            return dlambda >= Math.PI / 2 ? 0
+                    : R * Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(dlambda));
+        }
+        return R * Math.toRadians(Math.abs(lat - lats[mid]));
+    }
+
+    private void search(Query q, int lo, int hi, int depth) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        q.offer(GraphDB.distanceHelper(q.lat, lats[mid], q.lon, lons[mid]), items[mid]);
+
+        double diff = (depth & 1) == 0 ? q.lon - lons[mid] : q.lat - lats[mid];
+        double bound = bound(q.lon, q.lat, mid, depth);
+        if (diff < 0) {
+            search(q, lo, mid, depth + 1);
+            if (bound * BOUND_SLACK <= q.worst()) {
+                search(q, mid + 1, hi, depth + 1);
+            }
+        } else {
+            search(q, mid + 1, hi, depth + 1);
+            if (bound * BOUND_SLACK <= q.worst()) {
+                search(q, lo, mid, depth + 1);
+            }
+        }
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, (depth & 1) == 0 ? lons : lats);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /** Quickselect: partially orders [lo, hi] by key so that position k holds its median. */
+    private void select(int lo, int hi, int k, double[] key) {
+        while (hi > lo) {
+            int pivot = (lo + hi) >>> 1;
+            swap(pivot, hi);
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (less(i, hi, key)) {
+                    swap(i, store);
+                    store++;
+                }
+            }
+            swap(store, hi);
+            if (store == k) {
+                return;
+            } else if (store < k) {
+                lo = store + 1;
+            } else {
+                hi = store - 1;
+            }
+        }
+    }
+
+    private boolean less(int i, int j, double[] key) {
+        return key[i] < key[j] || (key[i] == key[j] && items[i] < items[j]);
+    }
+
+    private void swap(int i, int j) {
+        int item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+        double lon = lons[i];
+        lons[i] = lons[j];
+        lons[j] = lon;
+        double lat = lats[i];
+        lats[i] = lats[j];
+        lats[j] = lat;
+    }
+
+    /** The k best candidates seen so far, kept as a max-heap on (distance, item). */
+    private static class Query {
+        final double lon, lat;
+        final int capacity;
+        final double[] dist;
+        final int[] item;
+        int size = 0;
+
+        Query(double lon, double lat, int capacity) {
+            this.lon = lon;
+            this.lat = lat;
+            this.capacity = capacity;
+            dist = new double[capacity];
+            item = new int[capacity];
+        }
+
+        double worst() {
+            return size < capacity ? Double.POSITIVE_INFINITY : dist[0];
+        }
+
+        void offer(double d, int it) {
+            if (size < capacity) {
+                int i = size++;
+                dist[i] = d;
+                item[i] = it;
+                while (i > 0 && after(i, (i - 1) / 2)) {
+                    swap(i, (i - 1) / 2);
+                    i = (i - 1) / 2;
+                }
+            } else if (d < dist[0] || (d == dist[0] && it < item[0])) {
+                dist[0] = d;
+                item[0] = it;
+                siftDown(0, size);
+            }
+        }
+
+        /** Empties the heap into an array ordered closest first. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int end = size - 1; end >= 0; end--) {
+                result[end] = item[0];
+                swap(0, end);
+                siftDown(0, end);
+            }
+            return result;
+        }
+
+        private void siftDown(int i, int n) {
+            while (true) {
+                int largest = i;
+                int l = 2 * i + 1;
+                int r = l + 1;
+                if (l < n && after(l, largest)) {
+                    largest = l;
+                }
+                if (r < n && after(r, largest)) {
+                    largest = r;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private boolean after(int i, int j) {
+            return dist[i] > dist[j] || (dist[i] == dist[j] && item[i] > item[j]);
+        }
+
+        private void swap(int i, int j) {
+            double d = dist[i];
+            dist[i] = dist[j];
+            dist[j] = d;
+            int it = item[i];
+            item[i] = item[j];
+            item[j] = it;
+        }
+    }
+}
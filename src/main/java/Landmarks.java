@@ -0,0 +1,266 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Landmark distances for the ALT heuristic (A*, landmarks, triangle inequality). For a few
+ * landmark vertices L we store the road distance d(L, v) to every vertex v, and since roads
+ * are two-way, |d(L, t) - d(L, v)| is a lower bound on d(v, t) for every landmark.
+ * Distances are kept as floats, in a flat array where the distances of one vertex to all
+ * landmarks sit next to each other. Bounds are shrunk by the float rounding error so they
+ * stay admissible. The distances are written to a file next to the graph snapshot, so
+ * that the Dijkstras only run when the graph changes.
+ */
+class Landmarks {
+    /** Number of landmarks used by default. */
+    static final int DEFAULT_COUNT = 16;
+    static final String LANDMARKS_PATH = "../data/berkeley-2018.alt";
+
+    /** The bytes "BMALT1" and two zeros, read as a little-endian long. */
+    private static final long MAGIC = 0x31544c414d42L;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final int[] landmarks;
+    private final float[] dist;
+    private final int count;
+    private final long fingerprint;
+
+    private Landmarks(int[] landmarks, float[] dist, long fingerprint) {
+        this.landmarks = landmarks;
+        this.dist = dist;
+        this.count = landmarks.length;
+        this.fingerprint = fingerprint;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /** Vertex index of the i-th landmark. */
+    int landmark(int i) {
+        return landmarks[i];
+    }
+
+    /**
+     * Lower bound on the road distance between vertices v and t. Landmarks that cannot
+     * reach both of them are ignored.
+     */
+    double lowerBound(int v, int t) {
+        int vi = v * count;
+        int ti = t * count;
+        float best = 0;
+        for (int i = 0; i < count; i++) {
+            float dv = dist[vi + i];
+            float dt = dist[ti + i];
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.abs(dt - dv) - 2 * Math.ulp(Math.max(dt, dv)));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks count landmarks among the routable vertices of g by farthest-point selection on
+     * great-circle distance, then runs one Dijkstra per landmark on the given number of
+     * worker threads.
+     */
+    static Landmarks build(CompactGraph g, int count, int threads) {
+        int[] chosen = selectFarthest(g, Math.min(count, g.routableSize()));
+        int k = chosen.length;
+        int n = g.size();
+        float[] dist = new float[n * k];
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                int column = i;
+                runs.add(pool.submit(() -> dijkstra(g, chosen[column], column, k, dist)));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Landmark preprocessing failed", e);
+        } finally {
+            pool.shutdown();
+        }
+        return new Landmarks(chosen, dist, ContractionHierarchy.fingerprint(g));
+    }
+
+    /**
+     * True if these landmarks were built from a graph with the same vertices, coordinates,
+     * edges and edge lengths as g; with other lengths the stored distances would give bounds
+     * that are not admissible.
+     */
+    boolean matches(CompactGraph g) {
+        return fingerprint == ContractionHierarchy.fingerprint(g);
+    }
+
+    /**
+     * Loads the landmarks stored at path for g. If there are none, or they belong to a
+     * different graph or are a different number, builds them as build does and writes them
+     * to path for the next boot.
+     */
+    static Landmarks load(CompactGraph g, String path, int count, int threads) {
+        File file = new File(path);
+        try {
+            Landmarks landmarks = read(file);
+            if (landmarks != null && landmarks.matches(g)
+                    && landmarks.count == Math.min(count, g.routableSize())) {
+                return landmarks;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Landmarks landmarks = build(g, count, threads);
+        try {
+            landmarks.write(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return landmarks;
+    }
+
+    void write(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 4 * count + 4 * dist.length)
+                .order(ORDER);
+        buf.putLong(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(dist.length / Math.max(1, count));
+        buf.putInt(count);
+        buf.putInt(0);
+        buf.putLong(fingerprint);
+        for (int landmark : landmarks) {
+            buf.putInt(landmark);
+        }
+        for (float d : dist) {
+            buf.putFloat(d);
+        }
+        buf.flip();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reads landmarks written by write, or returns null if there are no current ones. */
+    static Landmarks read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        map.order(ORDER);
+        if (map.limit() < HEADER_BYTES || map.getLong(0) != MAGIC
+                || map.getInt(8) != VERSION) {
+            return null;
+        }
+        int n = map.getInt(12);
+        int k = map.getInt(16);
+        long fingerprint = map.getLong(24);
+        if (map.limit() != HEADER_BYTES + 4L * k + 4L * n * k) {
+            return null;
+        }
+        map.position(HEADER_BYTES);
+        int[] landmarks = new int[k];
+        map.asIntBuffer().get(landmarks);
+        map.position(HEADER_BYTES + 4 * k);
+        float[] dist = new float[n * k];
+        map.asFloatBuffer().get(dist);
+        return new Landmarks(landmarks, dist, fingerprint);
+    }
+
+    /**
+     * Starts from the routable vertex farthest from the first one, then repeatedly adds the
+     * vertex whose distance to its nearest chosen landmark is largest.
+     */
+    private static int[] selectFarthest(CompactGraph g, int count) {
+        int n = g.size();
+        int[] chosen = new int[count];
+        if (count == 0) {
+            return chosen;
+        }
+        double[] nearest = new double[n];
+        int first = -1;
+        for (int v = 0; v < n && first < 0; v++) {
+            if (g.degree(v) > 0) {
+                first = v;
+            }
+        }
+        int next = farthestFrom(g, first, nearest, true);
+        for (int i = 0; i < count; i++) {
+            chosen[i] = next;
+            next = farthestFrom(g, next, nearest, i == 0);
+        }
+        return chosen;
+    }
+
+    /**
+     * Lowers nearest[v] to the distance from source where that is smaller (or sets it, if
+     * reset is true) and returns the routable vertex with the largest nearest value.
+     */
+    private static int farthestFrom(CompactGraph g, int source, double[] nearest,
+                                    boolean reset) {
+        int best = source;
+        double bestDist = -1;
+        for (int v = 0; v < g.size(); v++) {
+            if (g.degree(v) == 0) {
+                continue;
+            }
+            double d = g.distance(source, v);
+            nearest[v] = reset ? d : Math.min(nearest[v], d);
+            if (nearest[v] > bestDist) {
+                bestDist = nearest[v];
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /** One-to-all Dijkstra from source, written to column i of dist. */
+    private static void dijkstra(CompactGraph g, int source, int i, int k, float[] dist) {
+        int n = g.size();
+        for (int v = 0; v < n; v++) {
+            dist[v * k + i] = Float.POSITIVE_INFINITY;
+        }
+        SearchSpace sp = new SearchSpace(n);
+        sp.reset();
+        sp.open(source, 0, -1, 0);
+        while (!sp.heap.isEmpty()) {
+            int v = sp.settleNext();
+            double dv = sp.dist[v];
+            dist[v * k + i] = (float) dv;
+            for (int e = g.begin(v); e < g.end(v); e++) {
+                int w = g.target(e);
+                double dw = dv + g.length(e);
+                if (!sp.reached(w)) {
+                    sp.open(w, dw, v, 0);
+                } else if (!sp.settled(w) && dw < sp.dist[w]) {
+                    sp.relax(w, dw, v);
+                }
+            }
+        }
+    }
+}
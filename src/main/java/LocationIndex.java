@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the words of cleaned location names, so that searches match names
+ * from any word on, e.g. "hall" finds "wheeler hall". Names are numbered in order, and
+ * each word has a posting list of the numbers of the names containing it, sorted and
+ * stored in one shared int pool in blocks of BLOCK: the first posting of a block is the
+ * number itself and the others are gaps from the one before. The words are a sorted
+ * array, so the words beginning with a prefix are one range of it.
+ * <p>
+ * A query matches the names containing all of its words, of which the last may only be
+ * begun. The shortest posting list of the whole words is decoded, and its numbers are
+ * looked up in the others by galloping over the first numbers of their blocks and
+ * decoding only the blocks landed in. The few names left are checked for a word
+ * beginning with the last one. A query of one word instead merges the postings of the
+ * words it begins, and stops at the limit.
+ */
+final class LocationIndex {
+    /** Postings per block; each block begins with an absolute name number. */
+    static final int BLOCK = 64;
+
+    private final String[] names;
+    private final String[] words;
+    /** Postings of words[i] run from postingStart[i] to postingStart[i + 1]. */
+    private final int[] postingStart;
+    private final int[] postings;
+
+    /** @param names The cleaned location names, in order and without duplicates. */
+    LocationIndex(List<String> names) {
+        this.names = names.toArray(new String[0]);
+        Map<String, List<Integer>> lists = new HashMap<>();
+        for (int id = 0; id < this.names.length; id++) {
+            for (String word : words(this.names[id])) {
+                List<Integer> list = lists.computeIfAbsent(word, w -> new ArrayList<>());
+                if (list.isEmpty() || list.get(list.size() - 1) != id) {
+                    list.add(id);
+                }
+            }
+        }
+        words = lists.keySet().toArray(new String[0]);
+        Arrays.sort(words);
+        postingStart = new int[words.length + 1];
+        for (int i = 0; i < words.length; i++) {
+            postingStart[i + 1] = postingStart[i] + lists.get(words[i]).size();
+        }
+        postings = new int[postingStart[words.length]];
+        for (int i = 0; i < words.length; i++) {
+            encode(lists.get(words[i]), postings, postingStart[i]);
+        }
+    }
+
+    /** Reads back an index written by write. */
+    LocationIndex(GraphSnapshot.In in) {
+        names = in.getStrings();
+        words = in.getStrings();
+        postingStart = in.getInts();
+        postings = in.getInts();
+    }
+
+    void write(GraphSnapshot.Out out) {
+        out.putStrings(names);
+        out.putStrings(words);
+        out.putInts(postingStart);
+        out.putInts(postings);
+    }
+
+    /** The names, in order. */
+    List<String> names() {
+        return Arrays.asList(names);
+    }
+
+    /** Writes the sorted ids into pool from index at on, in blocks as described above. */
+    static void encode(List<Integer> ids, int[] pool, int at) {
+        int previous = 0;
+        for (int k = 0; k < ids.size(); k++) {
+            int id = ids.get(k);
+            pool[at + k] = k % BLOCK == 0 ? id : id - previous;
+            previous = id;
+        }
+    }
+
+    /**
+     * The names containing every word of the cleaned query, the last word possibly only
+     * begun, at most limit of them and in order.
+     */
+    List<String> search(String query, int limit) {
+        List<String> result = new ArrayList<>();
+        String[] tokens = words(query);
+        if (tokens.length == 0 || limit <= 0) {
+            return result;
+        }
+        String last = tokens[tokens.length - 1];
+        int lo = lowerBound(last);
+        int hi = lowerBound(last + Character.MAX_VALUE);
+        if (lo == hi) {
+            return result;
+        }
+        if (tokens.length == 1) {
+            return merge(lo, hi, limit);
+        }
+
+        Integer[] whole = new Integer[tokens.length - 1];
+        for (int i = 0; i < whole.length; i++) {
+            whole[i] = Arrays.binarySearch(words, tokens[i]);
+            if (whole[i] < 0) {
+                return result;
+            }
+        }
+        Arrays.sort(whole, (a, b) -> postingCount(a) - postingCount(b));
+        int[] candidates = decode(whole[0]);
+        for (int i = 1; i < whole.length && candidates.length > 0; i++) {
+            candidates = intersect(candidates, postings, postingStart[whole[i]],
+                    postingStart[whole[i] + 1]);
+        }
+        for (int id : candidates) {
+            if (hasWordBeginning(names[id], last)) {
+                result.add(names[id]);
+                if (result.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** The words of a cleaned name. */
+    private static String[] words(String name) {
+        String trimmed = name.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" +");
+    }
+
+    /** Index of the first word not before key. */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = words.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (words[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int postingCount(int word) {
+        return postingStart[word + 1] - postingStart[word];
+    }
+
+    /** The postings of words[word], as name numbers. */
+    private int[] decode(int word) {
+        int[] ids = new int[postingCount(word)];
+        decode(postings, postingStart[word], 0, ids.length, ids);
+        return ids;
+    }
+
+    /**
+     * Decodes count postings of the list starting at start into ids, beginning with posting
+     * from, which must begin a block.
+     */
+    private static void decode(int[] pool, int start, int from, int count, int[] ids) {
+        int id = 0;
+        for (int k = from; k < from + count; k++) {
+            id = k % BLOCK == 0 ? pool[start + k] : id + pool[start + k];
+            ids[k - from] = id;
+        }
+    }
+
+    /**
+     * The numbers of the sorted array a that are also in the list encoded in pool from
+     * start to end. Each number is looked up by galloping over the first numbers of the
+     * blocks from the block the last one was found in, and only that block is decoded, so
+     * the cost grows with the length of a and only logarithmically with that of the list.
+     */
+    static int[] intersect(int[] a, int[] pool, int start, int end) {
+        int[] result = new int[a.length];
+        int n = 0;
+        int blocks = (end - start + BLOCK - 1) / BLOCK;
+        int[] block = new int[BLOCK];
+        int blockLength = 0;
+        int loaded = -1;
+        int b = 0;
+        int j = 0;
+        for (int x : a) {
+            if (b == blocks || pool[start + b * BLOCK] > x) {
+                continue;
+            }
+            int step = 1;
+            int hi = b + 1;
+            while (hi < blocks && pool[start + hi * BLOCK] <= x) {
+                b = hi;
+                hi += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi, blocks);
+            /* Now block b begins at or before x and block hi, if any, after it. */
+            while (b + 1 < hi) {
+                int mid = (b + hi) >>> 1;
+                if (pool[start + mid * BLOCK] <= x) {
+                    b = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (b != loaded) {
+                blockLength = Math.min(BLOCK, end - start - b * BLOCK);
+                decode(pool, start, b * BLOCK, blockLength, block);
+                loaded = b;
+                j = 0;
+            }
+            while (j < blockLength && block[j] < x) {
+                j++;
+            }
+            if (j < blockLength && block[j] == x) {
+                result[n++] = x;
+            } else if (j == blockLength && b == blocks - 1) {
+                break;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** The first limit names in the postings of words lo to hi, merged through a heap. */
+    private List<String> merge(int lo, int hi, int limit) {
+        int count = hi - lo;
+        int[] position = new int[count];
+        int[] value = new int[count];
+        int[] heap = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            position[i] = postingStart[lo + i];
+            value[i] = postings[position[i]];
+            heap[size] = i;
+            siftUp(heap, size++, value);
+        }
+        List<String> result = new ArrayList<>();
+        int previous = -1;
+        while (size > 0 && result.size() < limit) {
+            int top = heap[0];
+            if (value[top] != previous) {
+                previous = value[top];
+                result.add(names[previous]);
+            }
+            if (++position[top] < postingStart[lo + top + 1]) {
+                int k = position[top] - postingStart[lo + top];
+                value[top] = k % BLOCK == 0 ? postings[position[top]]
+                        : value[top] + postings[position[top]];
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, size, value);
+        }
+        return result;
+    }
+
+    private static void siftUp(int[] heap, int i, int[] value) {
+        int x = heap[i];
+        while (i > 0 && value[heap[(i - 1) >>> 1]] > value[x]) {
+            heap[i] = heap[(i - 1) >>> 1];
+            i = (i - 1) >>> 1;
+        }
+        heap[i] = x;
+    }
+
+    private static void siftDown(int[] heap, int size, int[] value) {
+        if (size == 0) {
+            return;
+        }
+        int x = heap[0];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && value[heap[child + 1]] < value[heap[child]]) {
+                child++;
+            }
+            if (value[heap[child]] >= value[x]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+
+    /** Whether a word of name begins with prefix. */
+    private static boolean hasWordBeginning(String name, String prefix) {
+        for (int i = 0; i < name.length(); i++) {
+            if ((i == 0 || name.charAt(i - 1) == ' ') && name.startsWith(prefix, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded, thread-safe LRU cache with a byte budget. Keys are spread over independently
+ * locked segments, each an access-ordered LinkedHashMap holding an equal share of the
+ * budget, so concurrent requests rarely contend. Entry sizes come from a weigher supplied
+ * by the caller; values larger than a segment's share are never cached.
+ * Hits, misses and evictions are counted for sizing the budget.
+ */
+class LruCache<K, V> {
+    private final Segment<K, V>[] segments;
+    private final ToLongFunction<? super V> weigher;
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes Total byte budget over all segments.
+     * @param segmentCount Number of independently locked segments, rounded up to a power of 2.
+     * @param weigher Estimated size in bytes of a cached value.
+     */
+    LruCache(long maxBytes, int segmentCount, ToLongFunction<? super V> weigher) {
+        int count = segmentCount <= 1 ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+        /* Generic arrays cannot be created directly; the array never leaves this class. */
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Segment<K, V>[] array = new Segment[count];
+        segments = array;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(maxBytes / count);
+        }
+        this.weigher = weigher;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the value cached for key, or null, and marks it as recently used. */
+    V get(K key) {
+        Segment<K, V> s = segmentFor(key);
+        Node<V> node;
+        synchronized (s) {
+            node = s.map.get(key);
+        }
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return node.value;
+    }
+
+    /** Caches value under key, evicting least recently used entries to stay in budget. */
+    void put(K key, V value) {
+        Segment<K, V> s = segmentFor(key);
+        long weight = weigher.applyAsLong(value);
+        if (weight > s.maxBytes) {
+            return;
+        }
+        synchronized (s) {
+            Node<V> old = s.map.put(key, new Node<>(value, weight));
+            s.bytes += weight - (old == null ? 0 : old.weight);
+            Iterator<Node<V>> eldest = s.map.values().iterator();
+            while (s.bytes > s.maxBytes && eldest.hasNext()) {
+                s.bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /** Drops the entry for key, if any. */
+    void remove(K key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            Node<V> old = s.map.remove(key);
+            if (old != null) {
+                s.bytes -= old.weight;
+            }
+        }
+    }
+
+    /** Drops every entry. Counters are kept. */
+    void invalidateAll() {
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                s.map.clear();
+                s.bytes = 0;
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                size += s.map.size();
+            }
+        }
+        return size;
+    }
+
+    long bytes() {
+        long bytes = 0;
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                bytes += s.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /** Counters and occupancy, as a map ready to be encoded to Json. */
+    Map<String, Object> stats() {
+        long h = hits();
+        long m = misses();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("evictions", evictions());
+        stats.put("hit_ratio", h + m == 0 ? 0.0 : (double) h / (h + m));
+        stats.put("entries", size());
+        stats.put("bytes", bytes());
+        stats.put("max_bytes", maxBytes);
+        return stats;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Segment<K, V> {
+        final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        final long maxBytes;
+        long bytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    private static class Node<V> {
+        final V value;
+        final long weight;
+
+        Node(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
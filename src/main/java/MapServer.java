@@ -1,17 +1,10 @@
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
+import java.util.concurrent.ForkJoinPool;
 import java.io.IOException;
 
 
@@ -51,6 +44,8 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../data/berkeley-2018.osm.xml";
+    /** Binary snapshot of the parsed graph, written on the first boot and mapped afterwards. */
+    private static final String GRAPH_SNAPSHOT_PATH = "../data/berkeley-2018.graph";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -69,6 +64,92 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Raster requests may also pass format -> "png" to receive the image itself instead of
+     * Json, with the raster fields in X-Raster-* response headers (see writePngResponse).
+     **/
+    private static final String RASTER_FORMAT_PARAM = "format";
+    private static final String PNG_FORMAT = "png";
+    /**
+     * Raster requests may also pass palette -> "true" to receive an 8-bit indexed-color PNG,
+     * several times smaller than the truecolor one, for clients on slow links.
+     **/
+    private static final String RASTER_PALETTE_PARAM = "palette";
+    /**
+     * Raster requests may also pass viewport -> "true" to receive only the query box,
+     * resampled to w x h pixels, instead of every tile it touches at full size. The bounds
+     * in the response are then those of the query box (see RasterView.viewport).
+     **/
+    private static final String RASTER_VIEWPORT_PARAM = "viewport";
+    /**
+     * Raster and clear_route requests may also pass route_id -> the id that a /route
+     * response returned, to draw or drop that route. Rasters without it show no route.
+     **/
+    private static final String ROUTE_ID_PARAM = "route_id";
+    /**
+     * Prefix search requests may also pass limit -> the most names to return, at most
+     * Tries.TOP_K, which is also the default. Names carried by more nodes come first.
+     **/
+    private static final String SEARCH_LIMIT_PARAM = "limit";
+    /**
+     * Search requests may also pass lat and lon -> where the user is looking, usually the
+     * viewport center. Results are then ranked by distance from there as well as by text, and
+     * full searches return only the limit nearest locations.
+     **/
+    private static final String[] SEARCH_BIAS_PARAMS = {"lat", "lon"};
+    /** Response headers of the binary raster format, in the order of RASTER_HEADER_FIELDS. */
+    private static final String[] RASTER_HEADERS = {"X-Raster-Ul-Lon", "X-Raster-Ul-Lat",
+        "X-Raster-Lr-Lon", "X-Raster-Lr-Lat", "X-Raster-Depth", "X-Raster-Width",
+        "X-Raster-Height", "X-Raster-Query-Success"};
+    private static final String[] RASTER_HEADER_FIELDS = {"raster_ul_lon", "raster_ul_lat",
+        "raster_lr_lon", "raster_lr_lat", "depth", "raster_width", "raster_height",
+        "query_success"};
+    /** No content: answer to a binary raster request whose query failed. */
+    private static final int NO_CONTENT = 204;
+
+    /**
+     * Route requests may also pass mode -> one of the Router.Mode names, e.g. "bidirectional".
+     * Without it the server uses the mode set by the bearmaps.routing system property.
+     **/
+    private static final String ROUTE_MODE_PARAM = "mode";
+    /** Most vertices one route search may settle (bearmaps.routeMaxSettled). */
+    private static final long ROUTE_MAX_SETTLED =
+            Long.getLong("bearmaps.routeMaxSettled", 2_000_000L);
+    /** Most trie nodes one typo-tolerant name search may visit (bearmaps.searchFuzzyVisits). */
+    private static final int SEARCH_FUZZY_VISITS =
+            Integer.getInteger("bearmaps.searchFuzzyVisits", 5_000);
+    /** Miles of distance that weigh as much as one place in the text ranking of names. */
+    private static final double SEARCH_BIAS_MILES =
+            Double.parseDouble(System.getProperty("bearmaps.searchBiasMiles", "0.5"));
+    /** Milliseconds one route search may take (bearmaps.routeTimeoutMillis). */
+    private static final long ROUTE_TIMEOUT_MILLIS =
+            Long.getLong("bearmaps.routeTimeoutMillis", 2_000L);
+    /** Byte budget of decoded tiles, overridable with the bearmaps.tileCacheBytes property. */
+    private static final long TILE_CACHE_BYTES =
+            Long.getLong("bearmaps.tileCacheBytes", 128L << 20);
+    /**
+     * Tiles decoded and PNG strips compressed in parallel, overridable with the
+     * bearmaps.rasterThreads property.
+     */
+    private static final int RASTER_THREADS = Integer.getInteger("bearmaps.rasterThreads",
+            Runtime.getRuntime().availableProcessors());
+    /** Deflate level of raster PNGs, 0 to 9, overridable with the bearmaps.pngLevel property. */
+    private static final int PNG_LEVEL = Integer.getInteger("bearmaps.pngLevel", 6);
+    /** PngEncoder.Filter of raster PNGs, overridable with the bearmaps.pngFilter property. */
+    private static final String PNG_FILTER = System.getProperty("bearmaps.pngFilter",
+            "adaptive");
+    /** Byte budget of encoded rasters, overridable with the bearmaps.rasterCacheBytes property. */
+    private static final long RASTER_CACHE_BYTES =
+            Long.getLong("bearmaps.rasterCacheBytes", 64L << 20);
+    /** Byte budget of the route cache, overridable with the bearmaps.routeCacheBytes property. */
+    private static final long ROUTE_CACHE_BYTES =
+            Long.getLong("bearmaps.routeCacheBytes", 32L << 20);
+    /** Byte budget of clients' routes, overridable with the bearmaps.routeStoreBytes property. */
+    private static final long ROUTE_STORE_BYTES =
+            Long.getLong("bearmaps.routeStoreBytes", 16L << 20);
+    /** Milliseconds an unused client route is kept (bearmaps.routeTtlMillis). */
+    private static final long ROUTE_TTL_MILLIS =
+            Long.getLong("bearmaps.routeTtlMillis", 30L * 60 * 1000);
 
     /**
      * The result of rastering must be a map containing all of the
@@ -79,7 +160,13 @@ public class MapServer {
 
     private static Rasterer rasterer;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** The routes found for clients, by the route ids handed out with them. */
+    private static RouteStore routeStore;
+    private static Router.Mode routingMode;
+    private static RouteCache routeCache;
+    private static TileCache tileCache;
+    private static RasterCache rasterCache;
+    private static RasterRenderer renderer;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +176,33 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = GraphDB.load(OSM_DB_PATH, GRAPH_SNAPSHOT_PATH);
         rasterer = new Rasterer();
+        if (tileCache == null) {
+            tileCache = new TileCache(IMG_ROOT, TILE_CACHE_BYTES);
+            /* Tile decoding and PNG compression share one pool of raster threads. */
+            ForkJoinPool rasterPool = new ForkJoinPool(Math.max(1, RASTER_THREADS));
+            renderer = new RasterRenderer(new RasterCompositor(tileCache, TILE_SIZE, rasterPool),
+                    TILE_SIZE, ROUTE_STROKE_COLOR, ROUTE_STROKE_WIDTH_PX,
+                    new PngEncoder.Config(PNG_LEVEL, PngEncoder.Filter.parse(PNG_FILTER),
+                            rasterPool), new PaletteCache(tileCache, ROUTE_STROKE_COLOR));
+        }
+        /* Rasters draw routes of the previous graph; a fresh cache drops them. */
+        rasterCache = new RasterCache(RASTER_CACHE_BYTES);
+        /* Cached routes refer to vertex indices of the previous graph. */
+        if (routeCache == null) {
+            routeCache = new RouteCache(ROUTE_CACHE_BYTES);
+            routeStore = new RouteStore(ROUTE_STORE_BYTES, ROUTE_TTL_MILLIS);
+        } else {
+            routeCache.invalidateAll();
+            routeStore.invalidateAll();
+        }
+        routingMode = Router.Mode.parse(System.getProperty("bearmaps.routing", "astar"));
+        /* Use a preprocessed hierarchy if there is one; build it only if CH is the default. */
+        graph.setHierarchy(ContractionHierarchy.load(graph.compact(),
+                ContractionHierarchy.HIERARCHY_PATH, routingMode == Router.Mode.CH));
+        graph.setLandmarks(Landmarks.load(graph.compact(), Landmarks.LANDMARKS_PATH,
+                Landmarks.DEFAULT_COUNT, Runtime.getRuntime().availableProcessors()));
     }
 
     public static void main(String[] args) {
@@ -109,17 +221,25 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            boolean indexed = Boolean.parseBoolean(req.queryParams(RASTER_PALETTE_PARAM));
+            long routeId = RouteStore.parse(req.queryParams(ROUTE_ID_PARAM));
+            RasterView view = null;
+            if (rasterSuccess) {
+                view = Boolean.parseBoolean(req.queryParams(RASTER_VIEWPORT_PARAM))
+                        ? RasterView.viewport(rasteredImgParams, params, TILE_SIZE)
+                        : RasterView.full(rasteredImgParams, TILE_SIZE);
+            }
 
+            if (PNG_FORMAT.equals(req.queryParams(RASTER_FORMAT_PARAM))) {
+                return writePngResponse(rasterSuccess
+                        ? getRaster(rasteredImgParams, view, indexed, routeId) : null, res);
+            }
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                return getRaster(rasteredImgParams, view, indexed, routeId).json();
             }
 
             /* Encode response to Json */
@@ -127,16 +247,29 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the tile endpoint: single tile files, streamed as they are on disk. */
+        get("/tiles/:depth/:x/:y", (req, res) -> TileFiles.serve(IMG_ROOT, req, res));
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.Mode mode = getRoutingMode(req);
+            SearchBudget budget = new SearchBudget(ROUTE_MAX_SETTLED, ROUTE_TIMEOUT_MILLIS);
+            RouteCache.CachedRoute found = routeCache.route(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"), mode,
+                    budget);
+            String directions = getDirectionsText(found.directions);
             Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty() && directions.length() > 0);
+            boolean success = !found.isEmpty() && directions.length() > 0;
+            routeParams.put("routing_success", success);
             routeParams.put("directions", directions);
+            if (success) {
+                routeParams.put("route_id", RouteStore.format(routeStore.put(found.path)));
+            }
+            if (budget.exhausted()) {
+                routeParams.put("error", "Route search gave up - try closer points.");
+            }
             Gson gson = new Gson();
             return gson.toJson(routeParams);
 //            HashMap<String, Double> params =
@@ -147,24 +280,51 @@ public class MapServer {
 //            return !route.isEmpty();
         });
 
-        /* Define the API endpoint for clearing the current route. */
+        /* Define the API endpoint for clearing a route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            routeStore.remove(RouteStore.parse(req.queryParams(ROUTE_ID_PARAM)));
             return true;
         });
 
+        /* Define the API endpoint for cache counters, used to size the cache budgets. */
+        get("/cache_stats", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("route", routeCache.stats());
+            stats.put("route_store", routeStore.stats());
+            stats.put("tile", tileCache.stats());
+            stats.put("raster", rasterCache.stats());
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
             Gson gson = new Gson();
+            int limit = Tries.TOP_K;
+            String limitParam = req.queryParams(SEARCH_LIMIT_PARAM);
+            if (limitParam != null) {
+                try {
+                    limit = Math.max(0, Math.min(limit, Integer.parseInt(limitParam)));
+                } catch (NumberFormatException e) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - limit must be a number.");
+                }
+            }
+            Map<String, Double> bias = null;
+            if (reqParams.contains(SEARCH_BIAS_PARAMS[0])
+                    || reqParams.contains(SEARCH_BIAS_PARAMS[1])) {
+                bias = getRequestParams(req, SEARCH_BIAS_PARAMS);
+            }
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
+                List<Map<String, Object>> data = bias == null ? getLocations(term)
+                        : getLocations(term, limit, bias.get("lon"), bias.get("lat"));
                 return gson.toJson(data);
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
+                /* Search for the best ranked prefix matching strings. */
+                List<String> matches = bias == null ? getLocationsByPrefix(term, limit)
+                        : getLocationsByPrefix(term, limit, bias.get("lon"), bias.get("lat"));
                 return gson.toJson(matches);
             }
         });
@@ -202,85 +362,117 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns the routing mode requested by req, falling back to the server's default.
+     * @param req HTTP Request
+     */
+    private static Router.Mode getRoutingMode(spark.Request req) {
+        String mode = req.queryParams(ROUTE_MODE_PARAM);
+        if (mode == null) {
+            return routingMode;
+        }
+        try {
+            return Router.Mode.parse(mode);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing mode - " + mode + ".");
+            return routingMode;
+        }
+    }
+
+    /**
+     * Returns the encoded raster for the rasterer result, composited and encoded only if
+     * the same tiles have not been rendered with the same route before.
+     * @param view The part of the render grid to show, and its size.
+     * @param indexed Whether to encode the raster in indexed color.
+     * @param routeId Id of the route to draw. Unknown or expired ids draw no route, and
+     *                share their rasters with every other request without a route.
+     */
+    private static RasterCache.CachedRaster getRaster(Map<String, Object> rasteredImgParams,
+                                                      RasterView view, boolean indexed,
+                                                      long routeId) {
+        long[] drawn = routeStore.get(routeId);
+        if (drawn == null) {
+            routeId = RouteStore.NO_ROUTE;
+        }
+        RasterCache.Key key = RasterCache.key(rasteredImgParams, routeId, indexed, view);
+        RasterCache.CachedRaster cached = key == null ? null : rasterCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        /* The png image is written to the ByteArrayOutputStream */
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeImagesToOutputStream(rasteredImgParams, view, drawn, indexed, os);
+        cached = new RasterCache.CachedRaster(os.toByteArray(), rasteredImgParams);
+        if (key != null) {
+            rasterCache.put(key, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Writes the PNG of raster as the response body, with its bounds, depth and size in
+     * the X-Raster-* headers. A null raster stands for a failed query and is answered with
+     * no content and X-Raster-Query-Success set to false.
+     * @return The empty body, as the image has been written to the raw response already.
+     */
+    private static Object writePngResponse(RasterCache.CachedRaster raster,
+                                           spark.Response res) throws IOException {
+        res.header("Access-Control-Expose-Headers", String.join(", ", RASTER_HEADERS));
+        if (raster == null) {
+            res.header("X-Raster-Query-Success", "false");
+            res.status(NO_CONTENT);
+            return "";
+        }
+        for (int i = 0; i < RASTER_HEADERS.length; i++) {
+            Object value = raster.metadata.get(RASTER_HEADER_FIELDS[i]);
+            if (value != null) {
+                res.header(RASTER_HEADERS[i], String.valueOf(value));
+            }
+        }
+        res.type("image/png");
+        res.raw().setContentLength(raster.png.length);
+        res.raw().getOutputStream().write(raster.png);
+        return "";
+    }
+
     /** Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
+     * The image is rendered and encoded one row of tiles at a time (see RasterRenderer).
      */
     private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+                                                  RasterView view, long[] route,
+                                                  boolean indexed, ByteArrayOutputStream os) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
-            }
-        }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+        /* If there is a route, find its pixels. */
+        double ullon = view.ulLon;
+        double ullat = view.ulLat;
+
+        final double wdpp = (view.lrLon - ullon) / view.width;
+        final double hdpp = (ullat - view.lrLat) / view.height;
+        int stops = route == null ? 0 : route.length;
+        int[] routeX = new int[stops];
+        int[] routeY = new int[stops];
+        if (stops > 0) {
+            int i = 0;
+            for (long v : route) {
+                routeX[i] = (int) ((graph.lon(v) - ullon) * (1 / wdpp));
+                routeY[i] = (int) ((ullat - graph.lat(v)) * (1 / hdpp));
+                i++;
+            }
         }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+        view.describe(rasteredImageParams);
 
         try {
-            ImageIO.write(img, "png", os);
+            renderer.render(renderGrid, view, routeX, routeY, indexed, os);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
-        }
-        return tileImg;
-    }
-
-    /**
-     * Clear the current found route, if it exists.
-     */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
-    }
-
     /**
      * In linear time, collect all the names of OSM locations that prefix-match the query string.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
@@ -292,6 +484,35 @@ public class MapServer {
         return graph.getLocationsByPrefix(prefix);
     }
 
+    /**
+     * Collect the best ranked names of OSM locations that prefix-match the query string, in
+     * time independent of how many names match, followed by names that match it from a
+     * later word on, e.g. "hall" finds "wheeler hall", and by names that match it up to a
+     * typo or two, e.g. "wheelr" finds "wheeler hall".
+     * @param prefix Prefix string to be searched for, as above.
+     * @param limit Most names to return; at most Tries.TOP_K are ever returned.
+     * @return The full names of at most <code>limit</code> matching locations, prefix
+     * matches carried by the most nodes first.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return graph.getLocationsByPrefix(prefix, limit, SEARCH_FUZZY_VISITS);
+    }
+
+    /**
+     * Collect the names of OSM locations matching the query string as above, ranked for a
+     * user looking at the given point: a name's place in the text ranking and the distance
+     * of its nearest location from the point both count.
+     * @param prefix Prefix string to be searched for, as above.
+     * @param limit Most names to return; at most Tries.TOP_K are ever returned.
+     * @param lon Longitude of the point, usually the viewport center.
+     * @param lat Latitude of the point.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit, double lon,
+                                                    double lat) {
+        return graph.getLocationsNear(prefix, limit, SEARCH_FUZZY_VISITS, lon, lat,
+                SEARCH_BIAS_MILES);
+    }
+
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
      * information about each node that matches.
@@ -308,6 +529,15 @@ public class MapServer {
         return graph.getNodesByLocName(locationName);
     }
 
+    /**
+     * Like getLocations, but returns only the at most limit locations nearest to the given
+     * point, nearest first.
+     */
+    public static List<Map<String, Object>> getLocations(String locationName, int limit,
+                                                         double lon, double lat) {
+        return graph.getNodesByLocNameNear(locationName, limit, lon, lat);
+    }
+
     /** Validates that Rasterer has returned a result that can be rendered.
      * @param rip : Parameters provided by the rasterer
      */
@@ -328,11 +558,10 @@ public class MapServer {
         return true;
     }
 
-    /** Takes the route of this MapServer and converts it into an HTML friendly
+    /** Takes the directions of a route and converts them into an HTML friendly
      *  String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(List<Router.NavigationDirection> directions) {
         StringBuilder sb = new StringBuilder();
         int step = 1;
         for (Router.NavigationDirection d: directions) {
@@ -0,0 +1,247 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An 8-bit palette for indexed PNG rasters. Colors are chosen by median cut over a histogram
+ * of 15-bit (5 bits per channel) colors. Some entries are kept for the route: they are the
+ * route color blended over the map colors once and twice, which are exactly the colors a
+ * semi-transparent route stroke leaves on the tiles, so the route keeps its look after
+ * quantization. Pixels are mapped to the nearest entry through a lookup table over all
+ * 18-bit colors, finer than the histogram so that neighbouring entries are told apart.
+ */
+class Palette {
+    /** Entries of an 8-bit palette. */
+    static final int SIZE = 256;
+    /** Entries kept for the route color over the map. */
+    static final int ROUTE_COLORS = 32;
+    /** Number of 15-bit colors. */
+    static final int BINS = 1 << 15;
+    /** Number of 18-bit colors. */
+    private static final int LOOKUP_SIZE = 1 << 18;
+
+    private final int[] colors;
+    /** Palette index of every 18-bit color. */
+    private final byte[] lookup = new byte[LOOKUP_SIZE];
+
+    /** A palette of the given TYPE_INT_RGB colors, at most SIZE of them. */
+    Palette(int[] colors) {
+        if (colors.length == 0 || colors.length > SIZE) {
+            throw new IllegalArgumentException(colors.length + " palette colors");
+        }
+        this.colors = colors.clone();
+        for (int key = 0; key < LOOKUP_SIZE; key++) {
+            /* The center of the 18-bit color. */
+            int rgb = ((key & 0x3f000) << 6) | ((key & 0xfc0) << 4) | ((key & 0x3f) << 2)
+                    | 0x020202;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colors.length; i++) {
+                int d = distance(rgb, colors[i]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = i;
+                }
+            }
+            lookup[key] = (byte) best;
+        }
+    }
+
+    /**
+     * Builds a palette for map pixels counted in histogram, indexed by 15-bit color, with
+     * ROUTE_COLORS of its entries for routeColor drawn over those pixels.
+     */
+    static Palette build(long[] histogram, Color routeColor) {
+        int[] map = medianCut(histogram, SIZE - ROUTE_COLORS);
+        long[] blended = new long[BINS];
+        for (int bin = 0; bin < BINS; bin++) {
+            if (histogram[bin] > 0) {
+                /* Where consecutive segments overlap, the route is drawn twice. */
+                int once = blend(routeColor, color(bin) | 0x040404);
+                blended[bin(once)] += histogram[bin];
+                blended[bin(blend(routeColor, once))] += histogram[bin];
+            }
+        }
+        int[] route = medianCut(blended, ROUTE_COLORS);
+        int[] colors = Arrays.copyOf(map, map.length + route.length);
+        System.arraycopy(route, 0, colors, map.length, route.length);
+        return new Palette(colors);
+    }
+
+    /** Adds the pixels of a TYPE_INT_RGB image to a histogram indexed by 15-bit color. */
+    static void count(int[] pixels, long[] histogram) {
+        for (int rgb : pixels) {
+            histogram[bin(rgb)]++;
+        }
+    }
+
+    /** Palette index of a TYPE_INT_RGB pixel. */
+    int index(int rgb) {
+        return lookup[((rgb >> 6) & 0x3f000) | ((rgb >> 4) & 0xfc0) | ((rgb >> 2) & 0x3f)]
+                & 0xff;
+    }
+
+    /** Number of entries. */
+    int size() {
+        return colors.length;
+    }
+
+    /** The entries as PLTE chunk data: red, green and blue of every entry. */
+    byte[] rgbBytes() {
+        byte[] bytes = new byte[3 * colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            bytes[3 * i] = (byte) (colors[i] >> 16);
+            bytes[3 * i + 1] = (byte) (colors[i] >> 8);
+            bytes[3 * i + 2] = (byte) colors[i];
+        }
+        return bytes;
+    }
+
+    /** The 15-bit color of a TYPE_INT_RGB pixel. */
+    static int bin(int rgb) {
+        return ((rgb >> 9) & 0x7c00) | ((rgb >> 6) & 0x3e0) | ((rgb >> 3) & 0x1f);
+    }
+
+    /** The TYPE_INT_RGB color at the low corner of a 15-bit color. */
+    private static int color(int bin) {
+        return ((bin & 0x7c00) << 9) | ((bin & 0x3e0) << 6) | ((bin & 0x1f) << 3);
+    }
+
+    /** The result of drawing color over the opaque pixel rgb. */
+    static int blend(Color color, int rgb) {
+        int a = color.getAlpha();
+        int r = (color.getRed() * a + ((rgb >> 16) & 0xff) * (255 - a)) / 255;
+        int g = (color.getGreen() * a + ((rgb >> 8) & 0xff) * (255 - a)) / 255;
+        int b = (color.getBlue() * a + (rgb & 0xff) * (255 - a)) / 255;
+        return r << 16 | g << 8 | b;
+    }
+
+    /** Squared distance of two colors, with channels weighted roughly by luminance. */
+    private static int distance(int rgb1, int rgb2) {
+        int r = ((rgb1 >> 16) & 0xff) - ((rgb2 >> 16) & 0xff);
+        int g = ((rgb1 >> 8) & 0xff) - ((rgb2 >> 8) & 0xff);
+        int b = (rgb1 & 0xff) - (rgb2 & 0xff);
+        return 3 * r * r + 4 * g * g + 2 * b * b;
+    }
+
+    /**
+     * Splits the colors counted in histogram into at most n boxes, each time halving the box
+     * with the largest pixel count times squared channel range along that channel, and
+     * returns the mean color of each box.
+     */
+    private static int[] medianCut(long[] histogram, int n) {
+        int[] bins = new int[BINS];
+        int used = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            if (histogram[bin] > 0) {
+                bins[used++] = bin;
+            }
+        }
+        if (used == 0) {
+            return new int[] {0};
+        }
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(Arrays.copyOf(bins, used), histogram));
+        while (boxes.size() < n) {
+            Box widest = null;
+            for (Box box : boxes) {
+                if (box.bins.length > 1 && (widest == null || box.error > widest.error)) {
+                    widest = box;
+                }
+            }
+            if (widest == null) {
+                break;
+            }
+            boxes.remove(widest);
+            boxes.addAll(widest.split(histogram));
+        }
+        int[] colors = new int[boxes.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = boxes.get(i).mean(histogram);
+        }
+        return colors;
+    }
+
+    /** A set of 15-bit colors and the number of pixels they cover. */
+    private static final class Box {
+        final int[] bins;
+        final long pixels;
+        /** Shift of the 5-bit channel with the largest range within the box. */
+        final int shift;
+        /** How badly a single color represents the box: pixels times squared range. */
+        final long error;
+
+        Box(int[] bins, long[] histogram) {
+            this.bins = bins;
+            long sum = 0;
+            for (int bin : bins) {
+                sum += histogram[bin];
+            }
+            this.pixels = sum;
+            int bestShift = 0;
+            int bestRange = -1;
+            for (int s = 0; s <= 10; s += 5) {
+                int min = 31;
+                int max = 0;
+                for (int bin : bins) {
+                    int v = (bin >> s) & 0x1f;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                if (max - min > bestRange) {
+                    bestRange = max - min;
+                    bestShift = s;
+                }
+            }
+            this.shift = bestShift;
+            this.error = pixels * bestRange * bestRange;
+        }
+
+        /** Splits the box in two at the pixel median of its widest channel. */
+        List<Box> split(long[] histogram) {
+            Integer[] sorted = new Integer[bins.length];
+            for (int i = 0; i < bins.length; i++) {
+                sorted[i] = bins[i];
+            }
+            Arrays.sort(sorted, (a, b) -> ((a >> shift) & 0x1f) - ((b >> shift) & 0x1f));
+            long half = 0;
+            int cut = 1;
+            for (int i = 0; i < sorted.length - 1; i++) {
+                half += histogram[sorted[i]];
+                cut = i + 1;
+                if (2 * half >= pixels) {
+                    break;
+                }
+            }
+            int[] low = new int[cut];
+            int[] high = new int[sorted.length - cut];
+            for (int i = 0; i < sorted.length; i++) {
+                if (i < cut) {
+                    low[i] = sorted[i];
+                } else {
+                    high[i - cut] = sorted[i];
+                }
+            }
+            List<Box> halves = new ArrayList<>(2);
+            halves.add(new Box(low, histogram));
+            halves.add(new Box(high, histogram));
+            return halves;
+        }
+
+        /** The pixel-weighted mean TYPE_INT_RGB color of the box. */
+        int mean(long[] histogram) {
+            double r = 0;
+            double g = 0;
+            double b = 0;
+            for (int bin : bins) {
+                int rgb = color(bin) | 0x040404;
+                double weight = (double) histogram[bin] / pixels;
+                r += ((rgb >> 16) & 0xff) * weight;
+                g += ((rgb >> 8) & 0xff) * weight;
+                b += (rgb & 0xff) * weight;
+            }
+            return (int) Math.round(r) << 16 | (int) Math.round(g) << 8 | (int) Math.round(b);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One Palette per tile depth, built the first time a raster of that depth is asked for in
+ * indexed color and kept for good: there are only a handful of depths, and a palette is a
+ * few dozen kilobytes. A depth's palette is built from tiles sampled evenly over the whole
+ * map at that depth, so it does not depend on which viewport happened to come first.
+ */
+class PaletteCache {
+    /** Tiles sampled per axis. */
+    private static final int SAMPLES = 4;
+
+    private final TileCache tiles;
+    private final Color routeColor;
+    private final ConcurrentHashMap<Integer, Palette> palettes = new ConcurrentHashMap<>();
+
+    /**
+     * @param tiles Source of the sampled tiles.
+     * @param routeColor Color of the route drawn over rasters, alpha included.
+     */
+    PaletteCache(TileCache tiles, Color routeColor) {
+        this.tiles = tiles;
+        this.routeColor = routeColor;
+    }
+
+    /**
+     * Returns the palette for rasters of the tiles in grid, or null if the grid does not
+     * consist of tile names or no tile of its depth can be read.
+     */
+    Palette forGrid(String[][] grid) {
+        if (grid.length == 0 || grid[0].length == 0) {
+            return null;
+        }
+        long key = TileCache.key(grid[0][0]);
+        if (key < 0) {
+            return null;
+        }
+        int depth = (int) (key >>> 56);
+        Palette palette = palettes.get(depth);
+        if (palette == null) {
+            palette = build(depth);
+            if (palette != null) {
+                Palette raced = palettes.putIfAbsent(depth, palette);
+                palette = raced == null ? palette : raced;
+            }
+        }
+        return palette;
+    }
+
+    private Palette build(int depth) {
+        int perAxis = 1 << depth;
+        int step = Math.max(1, perAxis / SAMPLES);
+        long[] histogram = new long[Palette.BINS];
+        boolean sampled = false;
+        for (int y = step / 2; y < perAxis; y += step) {
+            for (int x = step / 2; x < perAxis; x += step) {
+                BufferedImage tile = tiles.get(depth, x, y);
+                if (tile != null) {
+                    Palette.count(((DataBufferInt) tile.getRaster().getDataBuffer()).getData(),
+                            histogram);
+                    sampled = true;
+                }
+            }
+        }
+        return sampled ? Palette.build(histogram, routeColor) : null;
+    }
+}
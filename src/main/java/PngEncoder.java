@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG a strip of scanlines at a time, so that an image never has to
+ * exist in memory as a whole. Each strip is filtered and deflated on its own, pigz-style:
+ * into a raw deflate stream that ends on a sync flush (or, for the last strip, the final
+ * block), so strips can be compressed in parallel and their output simply concatenated
+ * behind one zlib header. The Adler-32 checksums of the strips are combined in order for
+ * the zlib trailer. At most one strip more than the pool has threads is held at a time.
+ * Given a Palette, the encoder writes an indexed-color PNG instead, with every pixel
+ * replaced by its palette index; those rows are never filtered, as the PNG specification
+ * recommends for palette images.
+ */
+class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    /** Largest IDAT chunk written. */
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** Modulus of Adler-32. */
+    private static final int ADLER_BASE = 65521;
+
+    /** Scanline filters: one of the five PNG filters for every row, or the cheapest. */
+    enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** Per row, the filter with the smallest sum of absolute differences, as in libpng. */
+        ADAPTIVE;
+
+        /** Returns the filter with the given name, in any case. */
+        static Filter parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** Compression settings, and the pool that strips are compressed on. */
+    static final class Config {
+        /** Level 6 and adaptive filtering on the calling thread. */
+        static final Config DEFAULT = new Config(Deflater.DEFAULT_COMPRESSION, Filter.ADAPTIVE,
+                null);
+
+        final int level;
+        final Filter filter;
+        final ForkJoinPool pool;
+
+        /**
+         * @param level Deflate level, 0 to 9, or -1 for the zlib default.
+         * @param filter Scanline filter.
+         * @param pool Pool that compresses strips, or null to compress on the calling thread.
+         */
+        Config(int level, Filter filter, ForkJoinPool pool) {
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Bad deflate level " + level);
+            }
+            this.level = level;
+            this.filter = filter;
+            this.pool = pool;
+        }
+    }
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Config config;
+    /** Palette of an indexed-color image, or null for truecolor. */
+    private final Palette palette;
+    private final int bytesPerPixel;
+    private final Filter filter;
+    private final int maxPending;
+    private final ArrayDeque<Future<Strip>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    /** Last row handed to writeRows, the one the next strip's first row is filtered against. */
+    private int[] lastRow;
+    private int rowsWritten;
+    private long adler = 1;
+    /** IDAT bytes buffered until a chunk is full. */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkUsed;
+
+    /**
+     * Writes the PNG header of a width x height image to out.
+     * @param palette Palette of an indexed-color image, or null for a truecolor one.
+     */
+    PngEncoder(OutputStream out, int width, int height, Config config, Palette palette)
+            throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.palette = palette;
+        this.bytesPerPixel = palette == null ? 3 : 1;
+        this.filter = palette == null ? config.filter : Filter.NONE;
+        this.maxPending = config.pool == null ? 0 : config.pool.getParallelism() + 1;
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;  // bit depth
+        header[9] = (byte) (palette == null ? 2 : 3);  // color type: truecolor or indexed
+        writeChunk("IHDR", header, header.length);
+        if (palette != null) {
+            byte[] plte = palette.rgbBytes();
+            writeChunk("PLTE", plte, plte.length);
+        }
+        /* zlib header: deflate with a 32K window, and the level as a hint to decoders. */
+        idat(new byte[] {0x78, zlibLevelFlag(config.level)}, 2);
+    }
+
+    PngEncoder(OutputStream out, int width, int height, Config config) throws IOException {
+        this(out, width, height, config, null);
+    }
+
+    PngEncoder(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, Config.DEFAULT);
+    }
+
+    /**
+     * Encodes the next rows of the image as one strip, given as TYPE_INT_RGB pixels: row i
+     * starts at pixels[offset + i * width]. The pixels are copied, so the caller may reuse
+     * the array as soon as this returns.
+     */
+    void writeRows(int[] pixels, int offset, int rows) throws IOException {
+        if (rows <= 0) {
+            return;
+        }
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Image has only " + height + " rows");
+        }
+        int[] copy = new int[rows * width];
+        System.arraycopy(pixels, offset, copy, 0, copy.length);
+        rowsWritten += rows;
+        Strip strip = new Strip(copy, rows, lastRow, rowsWritten == height);
+        lastRow = new int[width];
+        System.arraycopy(copy, copy.length - width, lastRow, 0, width);
+
+        if (config.pool == null) {
+            write(strip.call());
+            return;
+        }
+        pending.add(config.pool.submit(strip));
+        while (pending.size() > maxPending) {
+            write(await(pending.remove()));
+        }
+    }
+
+    /** Writes the remaining compressed data and the end of the image. */
+    void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException(rowsWritten + " of " + height + " rows written");
+        }
+        while (!pending.isEmpty()) {
+            write(await(pending.remove()));
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        idat(trailer, trailer.length);
+        if (chunkUsed > 0) {
+            writeChunk("IDAT", chunk, chunkUsed);
+        }
+        writeChunk("IEND", chunk, 0);
+        out.flush();
+    }
+
+    private static Strip await(Future<Strip> strip) {
+        try {
+            return strip.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("PNG encoding interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("PNG encoding failed", e.getCause());
+        }
+    }
+
+    private void write(Strip strip) throws IOException {
+        idat(strip.deflated, strip.deflatedLength);
+        adler = adler32Combine(adler, strip.adler32, strip.rawLength);
+    }
+
+    /** Appends bytes of the zlib stream, writing out IDAT chunks as they fill. */
+    private void idat(byte[] data, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = Math.min(length - off, chunk.length - chunkUsed);
+            System.arraycopy(data, off, chunk, chunkUsed, n);
+            chunkUsed += n;
+            off += n;
+            if (chunkUsed == chunk.length) {
+                writeChunk("IDAT", chunk, chunkUsed);
+                chunkUsed = 0;
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        out.write(word);
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        out.write(name);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(name);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    /** FLG byte of the zlib header for a deflate level, with its check bits filled in. */
+    private static byte zlibLevelFlag(int level) {
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            return (byte) 0x9c;
+        } else if (level <= 1) {
+            return 0x01;
+        } else if (level <= 5) {
+            return 0x5e;
+        }
+        return (byte) 0xda;
+    }
+
+    /**
+     * Returns the Adler-32 of two byte sequences one after the other, given their separate
+     * checksums and the length of the second (zlib's adler32_combine).
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= 2L * ADLER_BASE) {
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    /** Filters and deflates one strip of rows into a raw deflate stream. */
+    private final class Strip implements Callable<Strip> {
+        private final int[] pixels;
+        private final int rows;
+        private final int[] above;
+        private final boolean last;
+
+        byte[] deflated = new byte[CHUNK_SIZE];
+        int deflatedLength;
+        long adler32;
+        long rawLength;
+
+        /* Unfiltered bytes of the current and the previous row, and two filtered candidates,
+         * each with the filter type in front. */
+        private byte[] row;
+        private byte[] prior;
+        private byte[] best;
+        private byte[] candidate;
+
+        /**
+         * @param pixels The rows of the strip.
+         * @param above The row above the strip, or null at the top of the image.
+         * @param last Whether the strip ends the image.
+         */
+        Strip(int[] pixels, int rows, int[] above, boolean last) {
+            this.pixels = pixels;
+            this.rows = rows;
+            this.above = above;
+            this.last = last;
+        }
+
+        @Override
+        public Strip call() {
+            int rowBytes = 1 + width * bytesPerPixel;
+            row = new byte[rowBytes];
+            prior = new byte[rowBytes];
+            best = new byte[rowBytes];
+            candidate = new byte[rowBytes];
+            if (above != null) {
+                toBytes(above, 0, prior);
+            }
+            Adler32 checksum = new Adler32();
+            Deflater deflater = new Deflater(config.level, true);
+            try {
+                for (int r = 0; r < rows; r++) {
+                    toBytes(pixels, r * width, row);
+                    byte[] filtered = filter();
+                    checksum.update(filtered, 0, rowBytes);
+                    deflater.setInput(filtered, 0, rowBytes);
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, Deflater.NO_FLUSH);
+                    }
+                    byte[] swap = prior;
+                    prior = row;
+                    row = swap;
+                }
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflate(deflater, Deflater.NO_FLUSH);
+                    }
+                } else {
+                    /* Ends on a byte boundary, so the next strip's blocks can follow. */
+                    boolean full;
+                    do {
+                        full = deflate(deflater, Deflater.SYNC_FLUSH);
+                    } while (full);
+                }
+            } finally {
+                deflater.end();
+            }
+            adler32 = checksum.getValue();
+            rawLength = (long) rows * rowBytes;
+            return this;
+        }
+
+        /**
+         * Deflates into the output buffer, growing it when full, and returns whether the
+         * buffer filled up, in which case the deflater may have more output.
+         */
+        private boolean deflate(Deflater deflater, int flush) {
+            if (deflatedLength == deflated.length) {
+                byte[] grown = new byte[deflated.length * 2];
+                System.arraycopy(deflated, 0, grown, 0, deflatedLength);
+                deflated = grown;
+            }
+            int space = deflated.length - deflatedLength;
+            int n = deflater.deflate(deflated, deflatedLength, space, flush);
+            deflatedLength += n;
+            return n == space;
+        }
+
+        private void toBytes(int[] src, int start, byte[] dst) {
+            if (palette != null) {
+                for (int x = 0; x < width; x++) {
+                    dst[x + 1] = (byte) palette.index(src[start + x]);
+                }
+                return;
+            }
+            for (int x = 0, b = 1; x < width; x++, b += bytesPerPixel) {
+                int rgb = src[start + x];
+                dst[b] = (byte) (rgb >> 16);
+                dst[b + 1] = (byte) (rgb >> 8);
+                dst[b + 2] = (byte) rgb;
+            }
+        }
+
+        /** Returns the current row filtered as the configured filter says. */
+        private byte[] filter() {
+            if (filter != Filter.ADAPTIVE) {
+                filter(filter, best, Long.MAX_VALUE);
+                return best;
+            }
+            long bestSum = filter(Filter.NONE, best, Long.MAX_VALUE);
+            for (Filter type : new Filter[] {Filter.SUB, Filter.UP, Filter.AVERAGE,
+                Filter.PAETH}) {
+                long sum = filter(type, candidate, bestSum);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    byte[] swap = best;
+                    best = candidate;
+                    candidate = swap;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Filters the current row into dst with the given filter and returns the sum of
+         * absolute filtered values, giving up as soon as that reaches limit.
+         */
+        private long filter(Filter type, byte[] dst, long limit) {
+            dst[0] = (byte) type.ordinal();
+            long sum = 0;
+            for (int i = 1; i < row.length; i++) {
+                int a = i > bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+                int b = prior[i] & 0xff;
+                int x = row[i] & 0xff;
+                int predicted;
+                switch (type) {
+                    case NONE:
+                        predicted = 0;
+                        break;
+                    case SUB:
+                        predicted = a;
+                        break;
+                    case UP:
+                        predicted = b;
+                        break;
+                    case AVERAGE:
+                        predicted = (a + b) >> 1;
+                        break;
+                    default:
+                        int c = i > bytesPerPixel ? prior[i - bytesPerPixel] & 0xff : 0;
+                        predicted = paeth(a, b, c);
+                }
+                dst[i] = (byte) (x - predicted);
+                sum += Math.abs(dst[i]);
+                if (sum >= limit) {
+                    return sum;
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+}
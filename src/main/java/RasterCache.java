@@ -0,0 +1,158 @@
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.gson.Gson;
+
+/**
+ * Finished /raster responses, so that identical viewports are served without compositing
+ * or encoding anything. A raster is determined by its tile range, given by the packed
+ * TileCache keys of its upper left and lower right tiles (the depth is part of those), by
+ * the RouteStore id of the route drawn over it (NO_ROUTE for none), by whether it is in
+ * indexed color, and by the RasterView of the grid it shows. Entries hold the PNG bytes
+ * and the metadata returned by Rasterer.getMapRaster, plus the Json response built from
+ * both once a client asks for it, weighed by their size and evicted LRU under a byte
+ * budget.
+ */
+class RasterCache {
+    /** Independently locked segments of the underlying LruCache. */
+    private static final int SEGMENTS = 16;
+
+    private final LruCache<Key, CachedRaster> cache;
+
+    /** @param maxBytes Byte budget for encoded rasters and their responses. */
+    RasterCache(long maxBytes) {
+        cache = new LruCache<>(maxBytes, SEGMENTS, CachedRaster::weight);
+    }
+
+    /**
+     * Key of the truecolor raster described by the rasterer result, drawn with the given
+     * route, or null if the render grid does not consist of tile names.
+     */
+    static Key key(Map<String, Object> rastered, long routeId) {
+        return key(rastered, routeId, false);
+    }
+
+    /**
+     * Key of the raster described by the rasterer result, drawn with the given route in
+     * indexed or truecolor, or null if the render grid does not consist of tile names.
+     */
+    static Key key(Map<String, Object> rastered, long routeId, boolean indexed) {
+        return key(rastered, routeId, indexed, null);
+    }
+
+    /**
+     * Key of the raster described by the rasterer result, drawn with the given route in
+     * indexed or truecolor and showing the given view of the render grid, or null if the
+     * render grid does not consist of tile names.
+     * @param view The view shown, or null.
+     */
+    static Key key(Map<String, Object> rastered, long routeId, boolean indexed,
+                   RasterView view) {
+        String[][] grid = (String[][]) rastered.get("render_grid");
+        if (grid == null || grid.length == 0 || grid[0].length == 0) {
+            return null;
+        }
+        String[] lastRow = grid[grid.length - 1];
+        long upperLeft = TileCache.key(grid[0][0]);
+        long lowerRight = TileCache.key(lastRow[lastRow.length - 1]);
+        if (upperLeft < 0 || lowerRight < 0) {
+            return null;
+        }
+        return new Key(upperLeft, lowerRight, routeId, indexed, view);
+    }
+
+    /** Returns the raster cached under key, or null. */
+    CachedRaster get(Key key) {
+        return cache.get(key);
+    }
+
+    void put(Key key, CachedRaster raster) {
+        cache.put(key, raster);
+    }
+
+    /** Hit, miss and eviction counters along with the cache occupancy. */
+    Map<String, Object> stats() {
+        return cache.stats();
+    }
+
+    /** Tile range, route id, color mode and view of a raster. */
+    static final class Key {
+        private final long upperLeft;
+        private final long lowerRight;
+        private final long routeId;
+        private final boolean indexed;
+        /** The view of the grid, if given. */
+        private final RasterView view;
+
+        Key(long upperLeft, long lowerRight, long routeId, boolean indexed,
+            RasterView view) {
+            this.upperLeft = upperLeft;
+            this.lowerRight = lowerRight;
+            this.routeId = routeId;
+            this.indexed = indexed;
+            this.view = view;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return upperLeft == k.upperLeft && lowerRight == k.lowerRight
+                    && routeId == k.routeId && indexed == k.indexed
+                    && Objects.equals(view, k.view);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(upperLeft, lowerRight, routeId, indexed, view);
+        }
+    }
+
+    /** An encoded raster. All parts are shared between requests and must not be modified. */
+    static class CachedRaster {
+        final byte[] png;
+        final Map<String, Object> metadata;
+        /** The Json response, built on first use; clients of the binary format never need it. */
+        private volatile String json;
+
+        CachedRaster(byte[] png, Map<String, Object> metadata) {
+            this.png = png;
+            this.metadata = Collections.unmodifiableMap(metadata);
+        }
+
+        /** The metadata with the Base64 encoded PNG added as b64_encoded_image_data. */
+        String json() {
+            String result = json;
+            if (result == null) {
+                Map<String, Object> response = new HashMap<>(metadata);
+                response.put("b64_encoded_image_data",
+                        Base64.getEncoder().encodeToString(png));
+                result = new Gson().toJson(response);
+                json = result;
+            }
+            return result;
+        }
+
+        /**
+         * The PNG plus an upper estimate of the Json response, which holds the PNG in
+         * Base64 and the render grid, so that the weight does not grow once it is built.
+         */
+        long weight() {
+            long gridChars = 0;
+            String[][] grid = (String[][]) metadata.get("render_grid");
+            if (grid != null) {
+                gridChars = 24L * grid.length * (grid.length == 0 ? 0 : grid[0].length);
+            }
+            long jsonChars = 512 + (png.length + 2) / 3 * 4 + gridChars;
+            return 256 + png.length + 2 * jsonChars;
+        }
+    }
+}
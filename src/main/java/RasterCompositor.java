@@ -0,0 +1,113 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Stitches the tiles of a render grid into one image. Tiles are fetched (and, on a
+ * TileCache miss, decoded) in parallel on a bounded ForkJoinPool shared by all requests,
+ * and each is copied row by row straight into the canvas pixel array rather than drawn
+ * through Graphics, so large viewports take about as long as their slowest tile.
+ */
+class RasterCompositor {
+    private final TileCache tiles;
+    private final int tileSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param tiles Source of decoded TYPE_INT_RGB tiles.
+     * @param tileSize Width and height of a tile in pixels.
+     * @param threads Most tiles decoded at the same time, over all requests.
+     */
+    RasterCompositor(TileCache tiles, int tileSize, int threads) {
+        this(tiles, tileSize, new ForkJoinPool(Math.max(1, threads)));
+    }
+
+    /**
+     * @param tiles Source of decoded TYPE_INT_RGB tiles.
+     * @param tileSize Width and height of a tile in pixels.
+     * @param pool Pool the tiles are decoded on, possibly shared with other raster work.
+     */
+    RasterCompositor(TileCache tiles, int tileSize, ForkJoinPool pool) {
+        this.tiles = tiles;
+        this.tileSize = tileSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns a TYPE_INT_RGB image with the tile named grid[r][c] at row r and column c.
+     * Tiles that cannot be read are left black.
+     */
+    BufferedImage composite(String[][] grid) {
+        int rows = grid.length;
+        int cols = grid[0].length;
+        BufferedImage img = new BufferedImage(cols * tileSize, rows * tileSize,
+                BufferedImage.TYPE_INT_RGB);
+        int[] canvas = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int width = img.getWidth();
+
+        List<Callable<Void>> tasks = new ArrayList<>(rows * cols);
+        for (int r = 0; r < rows; r++) {
+            addTasks(tasks, grid[r], canvas, width, r * tileSize);
+        }
+        run(tasks);
+        return img;
+    }
+
+    /**
+     * Copies the tiles named in row side by side into band, the pixel array of a
+     * TYPE_INT_RGB image of the given width and one tile high. Pixels of tiles that cannot
+     * be read are left as they are.
+     */
+    void compositeRow(String[] row, int[] band, int width) {
+        List<Callable<Void>> tasks = new ArrayList<>(row.length);
+        addTasks(tasks, row, band, width, 0);
+        run(tasks);
+    }
+
+    private void addTasks(List<Callable<Void>> tasks, String[] row, int[] canvas, int width,
+                          int y) {
+        for (int c = 0; c < row.length; c++) {
+            String name = row[c];
+            int x = c * tileSize;
+            tasks.add(() -> {
+                blit(tiles.get(name), canvas, width, x, y, tileSize);
+                return null;
+            });
+        }
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Compositing interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Compositing failed", e.getCause());
+        }
+    }
+
+    /**
+     * Copies the top left size x size pixels of a TYPE_INT_RGB tile into the canvas, a
+     * pixel array of the given width, with the tile's corner at (x, y).
+     */
+    static void blit(BufferedImage tile, int[] canvas, int width, int x, int y, int size) {
+        if (tile == null) {
+            return;
+        }
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        int w = Math.min(size, tile.getWidth());
+        int h = Math.min(size, tile.getHeight());
+        int stride = tile.getWidth();
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(pixels, row * stride, canvas, (y + row) * width + x, w);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Renders a raster as a PNG one row of tiles at a time. Each band is composited, has the
+ * route segments crossing it drawn over it, and is handed to an incremental PngEncoder
+ * before the next band reuses its pixels, so a request holds one band instead of the whole
+ * image and its memory grows with the raster width rather than its area. Bands are
+ * compressed as PNG strips, in parallel if the PngEncoder.Config has a pool, while the
+ * following bands are composited. Indexed rasters are quantized to the palette of their
+ * depth as they are encoded, after the route has been drawn in full color.
+ * <p>
+ * A RasterView that crops or scales the grid is rendered the same way, except that the
+ * output bands are resampled bilinearly from the one or two tile bands under them, and the
+ * route is drawn at its full width in output pixels.
+ */
+class RasterRenderer {
+    private final RasterCompositor compositor;
+    private final int tileSize;
+    private final Color routeColor;
+    private final BasicStroke routeStroke;
+    /** How far the stroke reaches past a segment's end points. */
+    private final int routeReach;
+    private final PngEncoder.Config png;
+    /** Palettes of indexed rasters, or null if only truecolor is rendered. */
+    private final PaletteCache palettes;
+
+    /**
+     * @param compositor Source of the tile pixels of a band.
+     * @param tileSize Width and height of a tile in pixels.
+     * @param routeColor Color of the route line.
+     * @param routeWidth Width of the route line in pixels.
+     * @param png Compression settings of the output.
+     * @param palettes Palettes of indexed rasters, or null to render truecolor only.
+     */
+    RasterRenderer(RasterCompositor compositor, int tileSize, Color routeColor,
+                   float routeWidth, PngEncoder.Config png, PaletteCache palettes) {
+        this.compositor = compositor;
+        this.tileSize = tileSize;
+        this.routeColor = routeColor;
+        this.routeStroke = new BasicStroke(routeWidth, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND);
+        this.routeReach = (int) Math.ceil(routeWidth) + 1;
+        this.png = png;
+        this.palettes = palettes;
+    }
+
+    RasterRenderer(RasterCompositor compositor, int tileSize, Color routeColor,
+                   float routeWidth) {
+        this(compositor, tileSize, routeColor, routeWidth, PngEncoder.Config.DEFAULT, null);
+    }
+
+    /**
+     * Writes the PNG of the view of the tiles in grid, laid out as in
+     * RasterCompositor.composite, with the route through the raster pixels
+     * (routeX[i], routeY[i]) drawn over it.
+     * @param indexed Whether to write an indexed-color PNG. Rasters without a palette for
+     *                their depth are written in truecolor anyway.
+     */
+    void render(String[][] grid, RasterView view, int[] routeX, int[] routeY,
+                boolean indexed, OutputStream os) throws IOException {
+        int gridWidth = grid[0].length * tileSize;
+        int gridHeight = grid.length * tileSize;
+        Palette palette = indexed && palettes != null ? palettes.forGrid(grid) : null;
+        PngEncoder encoder = new PngEncoder(os, view.width, view.height, png, palette);
+        if (view.unscaled(gridWidth, gridHeight)) {
+            BufferedImage band = new BufferedImage(gridWidth, tileSize,
+                    BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+            for (int r = 0; r < grid.length; r++) {
+                composite(grid[r], pixels, gridWidth);
+                drawRoute(band, r * tileSize, routeX, routeY);
+                encoder.writeRows(pixels, 0, tileSize);
+            }
+        } else {
+            resample(grid, view, routeX, routeY, encoder);
+        }
+        encoder.finish();
+    }
+
+    /** Composites a row of tiles into band, a pixel array one tile high. */
+    private void composite(String[] row, int[] band, int width) {
+        /* Tiles that cannot be read stay black rather than showing the previous band. */
+        Arrays.fill(band, 0);
+        compositor.compositeRow(row, band, width);
+    }
+
+    /**
+     * Renders a cropped or scaled view. Output rows are sampled from two tile bands at most,
+     * the one holding the source row above them and the one after, composited on demand;
+     * since output rows go top to bottom, a band is never needed again once passed.
+     */
+    private void resample(String[][] grid, RasterView view, int[] routeX, int[] routeY,
+                          PngEncoder encoder) throws IOException {
+        int gridWidth = grid[0].length * tileSize;
+        int gridHeight = grid.length * tileSize;
+        int[][] bands = {new int[gridWidth * tileSize], new int[gridWidth * tileSize]};
+        int[] bandRow = {-1, -1};
+
+        /* Source columns and 8-bit weights of every output column. */
+        int[] x0 = new int[view.width];
+        int[] x1 = new int[view.width];
+        int[] fx = new int[view.width];
+        double scaleX = (view.right - view.left) / view.width;
+        for (int x = 0; x < view.width; x++) {
+            double sx = clamp(view.left + (x + 0.5) * scaleX - 0.5, gridWidth - 1);
+            x0[x] = (int) sx;
+            x1[x] = Math.min(x0[x] + 1, gridWidth - 1);
+            fx[x] = (int) ((sx - x0[x]) * 256);
+        }
+
+        BufferedImage out = new BufferedImage(view.width, Math.min(tileSize, view.height),
+                BufferedImage.TYPE_INT_RGB);
+        int[] outPixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        double scaleY = (view.bottom - view.top) / view.height;
+        int outTop = 0;
+        for (int y = 0; y < view.height; y++) {
+            double sy = clamp(view.top + (y + 0.5) * scaleY - 0.5, gridHeight - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, gridHeight - 1);
+            int fy = (int) ((sy - y0) * 256);
+            int[] above = band(grid, y0 / tileSize, bands, bandRow, gridWidth);
+            int[] below = band(grid, y1 / tileSize, bands, bandRow, gridWidth);
+            int aboveStart = (y0 % tileSize) * gridWidth;
+            int belowStart = (y1 % tileSize) * gridWidth;
+            int outStart = (y - outTop) * view.width;
+            for (int x = 0; x < view.width; x++) {
+                outPixels[outStart + x] = bilinear(above[aboveStart + x0[x]],
+                        above[aboveStart + x1[x]], below[belowStart + x0[x]],
+                        below[belowStart + x1[x]], fx[x], fy);
+            }
+            int rows = y - outTop + 1;
+            if (rows == out.getHeight() || y == view.height - 1) {
+                drawRoute(out, outTop, routeX, routeY);
+                encoder.writeRows(outPixels, 0, rows);
+                outTop = y + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the pixels of the r-th row of tiles, compositing it into whichever of the two
+     * band buffers does not hold the row before it.
+     */
+    private int[] band(String[][] grid, int r, int[][] bands, int[] bandRow, int width) {
+        for (int i = 0; i < 2; i++) {
+            if (bandRow[i] == r) {
+                return bands[i];
+            }
+        }
+        int slot = bandRow[0] == r - 1 ? 1 : 0;
+        composite(grid[r], bands[slot], width);
+        bandRow[slot] = r;
+        return bands[slot];
+    }
+
+    private static double clamp(double v, int max) {
+        return Math.max(0, Math.min(max, v));
+    }
+
+    /** Blends four TYPE_INT_RGB pixels with 8-bit weights fx across and fy down. */
+    private static int bilinear(int a, int b, int c, int d, int fx, int fy) {
+        int rgb = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int top = ((a >> shift) & 0xff) * (256 - fx) + ((b >> shift) & 0xff) * fx;
+            int bottom = ((c >> shift) & 0xff) * (256 - fx) + ((d >> shift) & 0xff) * fx;
+            rgb |= ((top * (256 - fy) + bottom * fy + (1 << 15)) >> 16) << shift;
+        }
+        return rgb;
+    }
+
+    /** Draws the segments of the route that reach into the band whose top row is top. */
+    private void drawRoute(BufferedImage band, int top, int[] routeX, int[] routeY) {
+        if (routeX.length < 2) {
+            return;
+        }
+        Graphics2D g2d = band.createGraphics();
+        g2d.translate(0, -top);
+        g2d.setColor(routeColor);
+        g2d.setStroke(routeStroke);
+        int bottom = top + tileSize;
+        for (int i = 1; i < routeX.length; i++) {
+            int y1 = routeY[i - 1];
+            int y2 = routeY[i];
+            if (Math.max(y1, y2) + routeReach < top || Math.min(y1, y2) - routeReach >= bottom) {
+                continue;
+            }
+            g2d.drawLine(routeX[i - 1], y1, routeX[i], y2);
+        }
+        g2d.dispose();
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The part of a render grid that a raster shows and the size it is shown at. The full view
+ * is the whole grid at one pixel per tile pixel, as Rasterer describes it. The viewport view
+ * is only the query box, clipped to the grid, resampled so that the query box would fill
+ * the requested w x h pixels; its bounds are those of the query box, not of the tiles.
+ */
+final class RasterView {
+    /** Crop of the grid image in grid pixels: left, top, right and bottom edges. */
+    final double left, top, right, bottom;
+    /** Size of the raster in pixels. */
+    final int width, height;
+    /** Bounds of the raster. */
+    final double ulLon, ulLat, lrLon, lrLat;
+
+    RasterView(double left, double top, double right, double bottom, int width, int height,
+               double ulLon, double ulLat, double lrLon, double lrLat) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.width = width;
+        this.height = height;
+        this.ulLon = ulLon;
+        this.ulLat = ulLat;
+        this.lrLon = lrLon;
+        this.lrLat = lrLat;
+    }
+
+    /** The whole render grid of a Rasterer result, unscaled. */
+    static RasterView full(Map<String, Object> rastered, int tileSize) {
+        String[][] grid = (String[][]) rastered.get("render_grid");
+        int width = grid[0].length * tileSize;
+        int height = grid.length * tileSize;
+        return new RasterView(0, 0, width, height, width, height,
+                (double) rastered.get("raster_ul_lon"), (double) rastered.get("raster_ul_lat"),
+                (double) rastered.get("raster_lr_lon"), (double) rastered.get("raster_lr_lat"));
+    }
+
+    /**
+     * The query box of a raster request, as given by its ullon, ullat, lrlon, lrlat, w and h
+     * parameters, cut out of the render grid of its Rasterer result and scaled to w x h.
+     * Parts of the query box beyond the grid are left out, shrinking the raster accordingly.
+     */
+    static RasterView viewport(Map<String, Object> rastered, Map<String, Double> query,
+                               int tileSize) {
+        RasterView grid = full(rastered, tileSize);
+        double lonPerPixel = (grid.lrLon - grid.ulLon) / grid.width;
+        double latPerPixel = (grid.ulLat - grid.lrLat) / grid.height;
+        double ulLon = Math.max(query.get("ullon"), grid.ulLon);
+        double ulLat = Math.min(query.get("ullat"), grid.ulLat);
+        double lrLon = Math.min(query.get("lrlon"), grid.lrLon);
+        double lrLat = Math.max(query.get("lrlat"), grid.lrLat);
+        if (ulLon >= lrLon || lrLat >= ulLat) {
+            return grid;
+        }
+        double queryWidth = query.get("lrlon") - query.get("ullon");
+        double queryHeight = query.get("ullat") - query.get("lrlat");
+        int width = Math.max(1, (int) Math.round(query.get("w") * (lrLon - ulLon) / queryWidth));
+        int height = Math.max(1,
+                (int) Math.round(query.get("h") * (ulLat - lrLat) / queryHeight));
+        return new RasterView((ulLon - grid.ulLon) / lonPerPixel,
+                (grid.ulLat - ulLat) / latPerPixel, (lrLon - grid.ulLon) / lonPerPixel,
+                (grid.ulLat - lrLat) / latPerPixel, width, height, ulLon, ulLat, lrLon, lrLat);
+    }
+
+    /** Whether the view is the whole grid at its own size, so no resampling is needed. */
+    boolean unscaled(int gridWidth, int gridHeight) {
+        return left == 0 && top == 0 && right == gridWidth && bottom == gridHeight
+                && width == gridWidth && height == gridHeight;
+    }
+
+    /** Stores the bounds and size of the view in a Rasterer result, for the response. */
+    void describe(Map<String, Object> rastered) {
+        rastered.put("raster_ul_lon", ulLon);
+        rastered.put("raster_ul_lat", ulLat);
+        rastered.put("raster_lr_lon", lrLon);
+        rastered.put("raster_lr_lat", lrLat);
+        rastered.put("raster_width", width);
+        rastered.put("raster_height", height);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RasterView)) {
+            return false;
+        }
+        RasterView v = (RasterView) o;
+        return left == v.left && top == v.top && right == v.right && bottom == v.bottom
+                && width == v.width && height == v.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(left, top, right, bottom, width, height);
+    }
+}
@@ -1,7 +1,3 @@
-import javafx.util.Pair;
-
-import java.text.DecimalFormat;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,150 +6,53 @@ import java.util.Map;
  * a query result. The getMapRaster method must return a Map containing all
  * seven of the required fields, otherwise the front end code will probably
  * not draw the output correctly.
+ * <p>
+ * Tiles are selected arithmetically: the depth is the first entry of a per-depth LonDPP
+ * table that is fine enough for the query, and the tile rows and columns follow from the
+ * query edges divided by the tile size at that depth. Nothing is allocated beyond the
+ * result.
  */
 public class Rasterer {
+    /** Deepest level of tiles in the img/ folder. */
+    private static final int MAX_DEPTH = 7;
+    private static final double ROOT_WIDTH = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+    private static final double ROOT_HEIGHT = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
 
-    private static DecimalFormat df = new DecimalFormat(".##############");
-    private int maxDepth = 7;
-    private int imageWidth = 256;
-    private double[] lonDpp;
-    private Tile root;
+    /** Longitudinal distance per pixel of the tiles at each depth. */
+    private final double[] lonDpp = new double[MAX_DEPTH + 1];
 
     public Rasterer() {
-        calculateLonDpp();
-        root = new Tile(0, 0, 0, MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
-                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT,
-                (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 256);
-    }
-
-    private void calculateLonDpp() {
-        lonDpp = new double[maxDepth + 1];
-        lonDpp[0] = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / imageWidth;
-        for (int i = 1; i < maxDepth + 1; i++) {
+        lonDpp[0] = ROOT_WIDTH / MapServer.TILE_SIZE;
+        for (int i = 1; i <= MAX_DEPTH; i++) {
             lonDpp[i] = lonDpp[i - 1] / 2;
         }
     }
 
-    private Tile zoom(double dppQuery, double ullonQuery, double ullatQuery, double lrlonQuery, double lrlatQuery) {
-        Tile zoomed = root;
-        int count = 0;
-        double lonMid = half(lrlonQuery, ullonQuery);
-        double latMid = half(lrlatQuery, ullatQuery);
-        while (!zoomed.inResolution(dppQuery) || !zoomed.inTile(lonMid, latMid)) {
-            count++;
-            zoomed = zoomed.nextQuad(lonMid, latMid);
-            System.out.println(zoomed.depth);
-            if (count > 100) {
-                return null;
+    /** The shallowest depth whose LonDPP is at most queryDpp, or the deepest one. */
+    private int depth(double queryDpp) {
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            if (lonDpp[depth] <= queryDpp) {
+                return depth;
             }
         }
-        return zoomed;
-    }
-
-    private double half(double a, double b) {
-        return (a + b) / 2;
-    }
-
-    private int gridSize(int depth) {
-        return (int) Math.sqrt(Math.pow(4, depth));
-    }
-
-    private double gridLonConstant(int gridSize) {
-        return (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / gridSize;
+        return MAX_DEPTH;
     }
 
-    private double gridLatConstant(int gridSize) {
-        return (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / gridSize;
-    }
-
-    private Pair<Integer, Double> rasterLeftToRight(int gridSize, double gridConstant, Map<String, Double> queryBox) {
-        int x1 = 0;
-        double queryLeftLon = queryBox.get("ullon");
-        double leftLon = MapServer.ROOT_ULLON;
-        boolean flag = false;
-        for (int i = 0; i < gridSize; i++) {
-            if (leftLon < queryLeftLon) {
-                flag = true;
-                leftLon += gridConstant;
-                x1 = i;
-            } else {
-                break;
-            }
-        }
-        if (flag) {
-            leftLon -= gridConstant;
-        }
-        return new Pair<>(x1, leftLon);
-    }
-
-    private Pair<Integer, Double> rasterRightToLeft(int gridSize, double gridConstant, Map<String, Double> queryBox) {
-        int x2 = gridSize - 1;
-        double queryRightLon = queryBox.get("lrlon");
-        double rightLon = MapServer.ROOT_LRLON;
-        boolean flag = false;
-        for (int i = gridSize - 1; i >= 0; i--) {
-            if (rightLon > queryRightLon) {
-                flag = true;
-                rightLon -= gridConstant;
-                x2 = i;
-            } else {
-                break;
-            }
-        }
-        if (flag) {
-            rightLon += gridConstant;
-        }
-        return new Pair<>(x2, rightLon);
-    }
-
-    private Pair<Integer, Double> rasterTopToBottom(int gridSize, double gridConstant, Map<String, Double> queryBox) {
-        int y1 = 0;
-        double queryUpperLat = queryBox.get("ullat");
-        double upperLat = MapServer.ROOT_ULLAT;
-        boolean flag = false;
-        for (int i = 0; i < gridSize; i++) {
-            if (upperLat > queryUpperLat) {
-                flag = true;
-                upperLat -= gridConstant;
-                y1 = i;
-            } else {
-                break;
-            }
-        }
-        if (flag) {
-            upperLat += gridConstant;
-        }
-        return new Pair<>(y1, upperLat);
+    /**
+     * The first of n tiles, each of the given size, that reaches past the query edge at
+     * distance from the map edge; tiles that end exactly at the edge do not count.
+     */
+    private static int firstTile(double distance, double size, int n) {
+        return clamp((int) Math.ceil(distance / size) - 1, n);
     }
 
-    private Pair<Integer, Double> rasterBottomToTop(int gridSize, double gridConstant, Map<String, Double> queryBox) {
-        int y2 = gridSize - 1;
-        double queryLowerLat = queryBox.get("lrlat");
-        double lowerLat = MapServer.ROOT_LRLAT;
-        boolean flag = false;
-        for (int i = gridSize - 1; i >= 0; i--) {
-            if (lowerLat < queryLowerLat) {
-                flag = true;
-                lowerLat += gridConstant;
-                y2 = i;
-            } else {
-                break;
-            }
-        }
-        if (flag) {
-            lowerLat -= gridConstant;
-        }
-        return new Pair<>(y2, lowerLat);
+    /** The last of n tiles, each of the given size, that starts before the query edge. */
+    private static int lastTile(double distance, double size, int n) {
+        return clamp((int) Math.floor(distance / size), n);
     }
 
-    private String[][] getRenderGrid(int x1, int y1, int x2, int y2, int depth) {
-        String[][] renderGrid = new String[y2 - y1 + 1][x2 - x1 + 1];
-        for (int i = y1, i1 = 0; i <= y2 || i1 < y2 - y1; i++, i1++) {
-            for (int j = x1, j1 = 0; j <= x2 || j1 < x2 - x1; j++, j1++) {
-                renderGrid[i1][j1] = String.format("d%d_x%d_y%d.png", depth, j, i);
-            }
-        }
-        return renderGrid;
+    private static int clamp(int tile, int n) {
+        return Math.max(0, Math.min(n - 1, tile));
     }
 
     /**
@@ -188,68 +87,43 @@ public class Rasterer {
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
         Map<String, Object> results = new HashMap<>();
-        if (params.get("ullon") > MapServer.ROOT_LRLON
-                || params.get("lrlon") < MapServer.ROOT_ULLON
-                || params.get("lrlat") > MapServer.ROOT_ULLAT
-                || params.get("ullat") < MapServer.ROOT_LRLAT) {
-            results.put("query_success", false);
-            return queryFailedResults(results, params);
-        }
-
-        double qDPP = (params.get("lrlon") - params.get("ullon")) / params.get("w");
-        Tile starter = zoom(qDPP, params.get("ullon"), params.get("ullat"), params.get("lrlon"), params.get("lrlat"));
-        if (starter == null) {
+        double ullon = params.get("ullon");
+        double ullat = params.get("ullat");
+        double lrlon = params.get("lrlon");
+        double lrlat = params.get("lrlat");
+        /* The tiles are chosen around the center of the query box, which must be on the map. */
+        double lonMid = (ullon + lrlon) / 2;
+        double latMid = (ullat + lrlat) / 2;
+        if (!(lonMid > MapServer.ROOT_ULLON && lonMid < MapServer.ROOT_LRLON
+                && latMid < MapServer.ROOT_ULLAT && latMid > MapServer.ROOT_LRLAT)) {
             return queryFailedResults(results, params);
         }
 
-        System.out.println("Zoomed depth" + String.valueOf(starter.depth));
-
-        System.out.println("Params " + params);
-
-        int gridSize = gridSize(starter.depth);
-        System.out.println("Grid size " + String.valueOf(gridSize));
-
-        double gridLonConstant = gridLonConstant(gridSize);
-        System.out.println("Grid Lon constant " + String.valueOf(gridLonConstant));
-
-        double gridLatConstant = gridLatConstant(gridSize);
-        System.out.println("Grid Lat constant " + String.valueOf(gridLatConstant));
-
-        Pair<Integer, Double> leftToRight = rasterLeftToRight(gridSize, gridLonConstant, params);
-        int x1 = leftToRight.getKey();
-        double leftLon = leftToRight.getValue();
-        System.out.println("x1 " + String.valueOf(x1));
-        System.out.println("ullon " + String.valueOf(leftLon));
-
-        Pair<Integer, Double> rightToLeft = rasterRightToLeft(gridSize, gridLonConstant, params);
-        int x2 = rightToLeft.getKey();
-        double rightLon = rightToLeft.getValue();
-        System.out.println("x2 " + String.valueOf(x2));
-        System.out.println("lrlon " + String.valueOf(rightLon));
-
-        Pair<Integer, Double> topToBottom = rasterTopToBottom(gridSize, gridLatConstant, params);
-        int y1 = topToBottom.getKey();
-        double upperLat = topToBottom.getValue();
-        System.out.println("y1 " + String.valueOf(y1));
-        System.out.println("ullat " + String.valueOf(upperLat));
+        int depth = depth((lrlon - ullon) / params.get("w"));
+        int n = 1 << depth;
+        double tileWidth = ROOT_WIDTH / n;
+        double tileHeight = ROOT_HEIGHT / n;
+        int x1 = firstTile(ullon - MapServer.ROOT_ULLON, tileWidth, n);
+        int x2 = lastTile(lrlon - MapServer.ROOT_ULLON, tileWidth, n);
+        int y1 = firstTile(MapServer.ROOT_ULLAT - ullat, tileHeight, n);
+        int y2 = lastTile(MapServer.ROOT_ULLAT - lrlat, tileHeight, n);
 
-        Pair<Integer, Double> bottomToTop = rasterBottomToTop(gridSize, gridLatConstant, params);
-        int y2 = bottomToTop.getKey();
-        double lowerLat = bottomToTop.getValue();
-        System.out.println("y2 " + String.valueOf(y2));
-        System.out.println("lrlat " + String.valueOf(lowerLat));
-
-        String[][] renderGrid = getRenderGrid(x1, y1, x2, y2, starter.depth);
-        System.out.println(Arrays.deepToString(renderGrid));
+        String[][] renderGrid = new String[y2 - y1 + 1][x2 - x1 + 1];
+        String prefix = "d" + depth + "_x";
+        for (int y = y1; y <= y2; y++) {
+            String[] row = renderGrid[y - y1];
+            for (int x = x1; x <= x2; x++) {
+                row[x - x1] = prefix + x + "_y" + y + ".png";
+            }
+        }
 
-        results.put("raster_ul_lon", leftLon);
-        results.put("raster_lr_lon", rightLon);
-        results.put("raster_lr_lat", lowerLat);
-        results.put("raster_ul_lat", upperLat);
-        results.put("depth", starter.depth);
+        results.put("raster_ul_lon", MapServer.ROOT_ULLON + x1 * tileWidth);
+        results.put("raster_lr_lon", MapServer.ROOT_ULLON + (x2 + 1) * tileWidth);
+        results.put("raster_ul_lat", MapServer.ROOT_ULLAT - y1 * tileHeight);
+        results.put("raster_lr_lat", MapServer.ROOT_ULLAT - (y2 + 1) * tileHeight);
+        results.put("depth", depth);
         results.put("render_grid", renderGrid);
         results.put("query_success", true);
-
         return results;
     }
 
@@ -263,71 +137,4 @@ public class Rasterer {
         results.put("query_success", false);
         return results;
     }
-
-    class Tile {
-        int x, y;
-        int depth;
-        double ulLon, ulLat, lrLon, lrLat, lonDpp;
-        String imgFile;
-
-        Tile(int x, int y, int d, double ullon, double ullat, double lrlon, double lrlat, double ldpp) {
-            depth = d;
-            ulLon = ullon;
-            ulLat = ullat;
-            lrLon = lrlon;
-            lrLat = lrlat;
-            lonDpp = ldpp;
-            imgFile = String.format("d%d_x%d_y%d.png", depth, x, y);
-        }
-
-        boolean inResolution(double maxDPP) {
-            System.out.println(String.format("lonDpp for depth %d is %s", depth, Double.toString(lonDpp)));
-            return (lonDpp <= maxDPP) || (depth == 7);
-        }
-
-        boolean inTile(double lon, double lat) {
-            return (ulLon < lon) && (lrLon > lon) && (ulLat > lat) && (lrLat < lat);
-        }
-
-        Tile nextQuad(double lon, double lat) {
-            Tile childNW = northWestChild();
-            Tile childNE = northEastChild();
-            Tile childSE = southEastChild();
-            Tile childSW = southWestChild();
-            if (childNW.inTile(lon, lat)) {
-                System.out.println("north west in tile");
-                return childNW;
-            } else if (childNE.inTile(lon, lat)) {
-                System.out.println("north east in tile");
-                return childNE;
-            } else if (childSE.inTile(lon, lat)) {
-                System.out.println("south east in tile");
-                return childSE;
-            } else if (childSW.inTile(lon, lat)) {
-                System.out.println("south west in tile");
-                return childSW;
-            }
-            return this;
-        }
-
-        Tile northWestChild() {
-            return new Tile(x, y, depth + 1, ulLon, ulLat, half(ulLon, lrLon),
-                    half(ulLat, lrLat), lonDpp / 2);
-        }
-
-        Tile northEastChild() {
-            return new Tile(x+1, y,depth + 1, half(ulLon, lrLon),
-                    ulLat, lrLon, half(ulLat, lrLat), lonDpp / 2);
-        }
-
-        Tile southWestChild() {
-            return new Tile(x, y+1, depth + 1, ulLon, half(ulLat, lrLat),
-                    half(ulLon, lrLon), lrLat, lonDpp / 2);
-        }
-
-        Tile southEastChild() {
-            return new Tile(x+1, y+1, depth + 1, half(ulLon, lrLon),
-                    half(ulLat, lrLat), lrLon, lrLat, lonDpp / 2);
-        }
-    }
 }
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches routes by their snapped endpoints. Nearby clicks snap to the same pair of
+ * vertices, so the key is the (start, end) vertex index pair packed into a long and the
+ * value is the path as a long[] of node IDs along with its turn-by-turn directions.
+ * Entries are weighed by their approximate heap size and evicted LRU under a byte budget.
+ * Vertex indices are only meaningful for one graph, so the cache must be invalidated
+ * whenever the graph is reloaded.
+ */
+class RouteCache {
+    /** Independently locked segments of the underlying LruCache. */
+    private static final int SEGMENTS = 16;
+
+    private final LruCache<Long, CachedRoute> cache;
+
+    /** @param maxBytes Byte budget for cached paths and directions. */
+    RouteCache(long maxBytes) {
+        cache = new LruCache<>(maxBytes, SEGMENTS, CachedRoute::weight);
+    }
+
+    /**
+     * Returns the route between the vertices closest to the two points, from the cache if
+     * an earlier query snapped to the same vertices, computing it with mode otherwise.
+     */
+    CachedRoute route(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                      Router.Mode mode) {
+        return route(g, stlon, stlat, destlon, destlat, mode, SearchBudget.unlimited());
+    }
+
+    /**
+     * Same as route above, with the search limited by budget. A search that runs out of
+     * budget returns the empty route and is not cached, so a later query may retry it.
+     */
+    CachedRoute route(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                      Router.Mode mode, SearchBudget budget) {
+        int start = g.closestIndex(stlon, stlat);
+        int end = g.closestIndex(destlon, destlat);
+        if (start < 0 || end < 0) {
+            return CachedRoute.EMPTY;
+        }
+        long key = ((long) start << 32) | (end & 0xffffffffL);
+        CachedRoute cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long[] path = Router.shortestPath(g, start, end, mode, budget);
+        if (budget.exhausted()) {
+            return CachedRoute.EMPTY;
+        }
+        List<Router.NavigationDirection> directions = path.length == 0
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(Router.routeDirections(g, toList(path)));
+        CachedRoute route = new CachedRoute(path, directions);
+        cache.put(key, route);
+        return route;
+    }
+
+    /** Drops every cached route, e.g. after the graph has been reloaded. */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** Hit, miss and eviction counters along with the cache occupancy. */
+    Map<String, Object> stats() {
+        return cache.stats();
+    }
+
+    static List<Long> toList(long[] path) {
+        List<Long> route = new ArrayList<>(path.length);
+        for (long id : path) {
+            route.add(id);
+        }
+        return route;
+    }
+
+    /** A path of node IDs and its directions. Both are shared and must not be modified. */
+    static class CachedRoute {
+        static final CachedRoute EMPTY = new CachedRoute(new long[0], Collections.emptyList());
+
+        final long[] path;
+        final List<Router.NavigationDirection> directions;
+
+        CachedRoute(long[] path, List<Router.NavigationDirection> directions) {
+            this.path = path;
+            this.directions = directions;
+        }
+
+        boolean isEmpty() {
+            return path.length == 0;
+        }
+
+        /** Rough heap footprint: the path array plus each direction and its way name. */
+        long weight() {
+            long bytes = 64 + 8L * path.length;
+            for (Router.NavigationDirection d : directions) {
+                bytes += 48 + (d.way == null ? 0 : 40 + 2L * d.way.length());
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Routes found for clients, so that each client's rasters show its own route instead of
+ * whichever route the server found last. Every stored path gets a fresh random id, which
+ * /route hands to the client and the client passes back to /raster; an id always stands
+ * for the same path, so rasters can be cached by it. Paths are kept as long[] node IDs in
+ * an LruCache under a byte budget, and expire once they have gone unused for the time to
+ * live; expired paths are dropped when next looked up, or pushed out by newer ones.
+ */
+class RouteStore {
+    /** Independently locked segments of the underlying LruCache. */
+    private static final int SEGMENTS = 16;
+    /** Id of no route; never handed out. */
+    static final long NO_ROUTE = 0;
+
+    private final LruCache<Long, Entry> cache;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param maxBytes Byte budget for stored paths.
+     * @param ttlMillis Milliseconds a route is kept after it was last used.
+     */
+    RouteStore(long maxBytes, long ttlMillis) {
+        this(maxBytes, ttlMillis, System::currentTimeMillis);
+    }
+
+    /** Same as above, with the time in milliseconds read from clock. */
+    RouteStore(long maxBytes, long ttlMillis, LongSupplier clock) {
+        this.cache = new LruCache<>(maxBytes, SEGMENTS, Entry::weight);
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /** Stores path, which must not be modified afterwards, and returns its new id. */
+    long put(long[] path) {
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == NO_ROUTE);
+        cache.put(id, new Entry(path, clock.getAsLong() + ttlMillis));
+        return id;
+    }
+
+    /**
+     * Returns the path stored under id, or null if there is none or it has expired. The
+     * path is shared and must not be modified.
+     */
+    long[] get(long id) {
+        if (id == NO_ROUTE) {
+            return null;
+        }
+        Entry entry = cache.get(id);
+        if (entry == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (now >= entry.expires) {
+            cache.remove(id);
+            return null;
+        }
+        entry.expires = now + ttlMillis;
+        return entry.path;
+    }
+
+    /** Drops the route stored under id, if any. */
+    void remove(long id) {
+        cache.remove(id);
+    }
+
+    /** Drops every route, e.g. after the graph has been reloaded. */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** Hit, miss and eviction counters along with the store occupancy. */
+    Map<String, Object> stats() {
+        return cache.stats();
+    }
+
+    /** The id as handed to clients: unsigned hexadecimal. */
+    static String format(long id) {
+        return Long.toHexString(id);
+    }
+
+    /** Parses an id handed to a client, returning NO_ROUTE for null or malformed ids. */
+    static long parse(String id) {
+        if (id == null || id.isEmpty() || id.length() > 16) {
+            return NO_ROUTE;
+        }
+        try {
+            return Long.parseUnsignedLong(id, 16);
+        } catch (NumberFormatException e) {
+            return NO_ROUTE;
+        }
+    }
+
+    private static class Entry {
+        final long[] path;
+        /** Time after which the route is gone, pushed back on every use. */
+        volatile long expires;
+
+        Entry(long[] path, long expires) {
+            this.path = path;
+            this.expires = expires;
+        }
+
+        long weight() {
+            return 64 + 8L * path.length;
+        }
+    }
+}
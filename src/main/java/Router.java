@@ -1,15 +1,11 @@
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Objects;
-import java.util.PriorityQueue;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,49 +20,246 @@ import java.util.regex.Pattern;
 public class Router {
     static Map<Long, Double> priorityMap;
 
+    /** Search strategies shortestPath can use. All of them return a shortest path. */
+    public enum Mode {
+        /** Unidirectional A* with the great-circle heuristic. */
+        ASTAR,
+        /** A* from both ends with averaged great-circle potentials. */
+        BIDIRECTIONAL,
+        /**
+         * Upward bidirectional Dijkstra over the graph's ContractionHierarchy. Falls back
+         * to ASTAR when no hierarchy is attached to the graph.
+         */
+        CH,
+        /**
+         * A* whose heuristic also uses the landmark triangle inequality bounds of the
+         * graph's Landmarks. Plain ASTAR when no landmarks are attached to the graph.
+         */
+        ALT;
+
+        /** Parses a mode name case-insensitively, e.g. "bidirectional". */
+        public static Mode parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /** Per-thread search state, reused across queries and grown when the graph does. */
+    private static final ThreadLocal<SearchSpace> SPACE = new ThreadLocal<>();
+    /** Second per-thread search state, for the backward half of bidirectional searches. */
+    private static final ThreadLocal<SearchSpace> BACKWARD_SPACE = new ThreadLocal<>();
+
     /**
      * Return a List of longs representing the shortest path from st to dest,
      * where the longs are node IDs.
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        LinkedList<Long> path = new LinkedList<>();
-        long start = g.closest(stlon, stlat);
-        long end = g.closest(destlon, destlat);
-        double totalDistance = g.distance(start, end);
-        PathNode initial = new PathNode(null, start, end, 0, totalDistance);
-        PriorityQueue<PathNode> minPQ = new PriorityQueue<>();
-        HashSet<Long> marked = new HashSet<>();
-        minPQ.add(initial);
-        boolean arrived = false;
-
-        while (!arrived) {
-            PathNode next = minPQ.poll();
-            if (next != null) {
-                System.out.println(next);
-                marked.add(next.thisPoint);
-                if (next.arrived()) {
-                    arrived = true;
-                    for (PathNode n = next; n != null; n = n.prev) {
-                        path.addFirst(n.thisPoint);
-                    }
+        return shortestPath(g, stlon, stlat, destlon, destlat, Mode.ASTAR);
+    }
+
+    /** Same as shortestPath above, but searching with the given mode. */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Mode mode) {
+        int start = g.closestIndex(stlon, stlat);
+        int end = g.closestIndex(destlon, destlat);
+        if (start < 0 || end < 0) {
+            return new ArrayList<>();
+        }
+        long[] path = shortestPath(g, start, end, mode);
+        List<Long> route = new ArrayList<>(path.length);
+        for (long id : path) {
+            route.add(id);
+        }
+        return route;
+    }
+
+    /** Shortest path between vertex indices start and end using the given mode. */
+    static long[] shortestPath(GraphDB g, int start, int end, Mode mode) {
+        return shortestPath(g, start, end, mode, SearchBudget.unlimited());
+    }
+
+    /**
+     * Shortest path between vertex indices start and end using the given mode, or an empty
+     * array if end is unreachable or the search exceeds budget. Endpoints in different
+     * connected components are rejected without searching.
+     */
+    static long[] shortestPath(GraphDB g, int start, int end, Mode mode, SearchBudget budget) {
+        CompactGraph cg = g.compact();
+        if (!cg.connected(start, end)) {
+            return new long[0];
+        }
+        switch (mode) {
+            case BIDIRECTIONAL:
+                return bidirectionalPath(cg, start, end, budget);
+            case CH:
+                if (g.hierarchy() != null) {
+                    return g.hierarchy().shortestPath(cg, start, end, searchSpace(cg),
+                            searchSpace(cg, BACKWARD_SPACE), budget);
+                }
+                return shortestPath(cg, null, start, end, budget);
+            case ALT:
+                return shortestPath(cg, g.landmarks(), start, end, budget);
+            default:
+                return shortestPath(cg, null, start, end, budget);
+        }
+    }
+
+    /**
+     * A* from vertex index start to vertex index end, using the great-circle distance to
+     * end as the heuristic. Returns the node IDs along the path, or an empty array if end
+     * is unreachable. Apart from the returned array the search allocates nothing once the
+     * calling thread's search space has been created.
+     */
+    static long[] shortestPath(CompactGraph g, int start, int end) {
+        return shortestPath(g, null, start, end);
+    }
+
+    /**
+     * A* as above, but when landmarks is not null the heuristic is the larger of the
+     * great-circle distance and the landmark lower bound. Both are admissible and
+     * consistent, and so is their maximum.
+     */
+    static long[] shortestPath(CompactGraph g, Landmarks landmarks, int start, int end) {
+        return shortestPath(g, landmarks, start, end, SearchBudget.unlimited());
+    }
+
+    /** A* as above, giving up with an empty array once budget is exceeded. */
+    static long[] shortestPath(CompactGraph g, Landmarks landmarks, int start, int end,
+                               SearchBudget budget) {
+        SearchSpace sp = searchSpace(g);
+        sp.reset();
+        sp.open(start, 0, -1, heuristic(g, landmarks, start, end));
+        while (!sp.heap.isEmpty()) {
+            int v = sp.settleNext();
+            if (v == end) {
+                return pathTo(g, sp, end);
+            }
+            if (budget.exceeded(sp.settledCount)) {
+                return new long[0];
+            }
+            double dv = sp.dist[v];
+            for (int e = g.begin(v); e < g.end(v); e++) {
+                int w = g.target(e);
+                double dw = dv + g.length(e);
+                if (!sp.reached(w)) {
+                    sp.open(w, dw, v, heuristic(g, landmarks, w, end));
+                } else if (!sp.settled(w) && dw < sp.dist[w]) {
+                    sp.relax(w, dw, v);
+                }
+            }
+        }
+        return new long[0];
+    }
+
+    private static double heuristic(CompactGraph g, Landmarks landmarks, int v, int end) {
+        double h = g.distance(v, end);
+        return landmarks == null ? h : Math.max(h, landmarks.lowerBound(v, end));
+    }
+
+    /**
+     * Bidirectional A* between vertex indices start and end. The forward search uses the
+     * potential p(v) = (d(v, end) - d(start, v)) / 2 and the backward search uses -p(v),
+     * where d is the great-circle distance. Both are consistent and their reduced edge
+     * costs agree, so the search can stop as soon as the two smallest keys add up to at
+     * least the best path seen so far, which is then optimal.
+     */
+    static long[] bidirectionalPath(CompactGraph g, int start, int end) {
+        return bidirectionalPath(g, start, end, SearchBudget.unlimited());
+    }
+
+    /** Bidirectional A* as above, giving up with an empty array once budget is exceeded. */
+    static long[] bidirectionalPath(CompactGraph g, int start, int end, SearchBudget budget) {
+        SearchSpace forward = searchSpace(g);
+        SearchSpace backward = searchSpace(g, BACKWARD_SPACE);
+        forward.reset();
+        backward.reset();
+        forward.open(start, 0, -1, averagePotential(g, start, start, end));
+        backward.open(end, 0, -1, -averagePotential(g, end, start, end));
+
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (!forward.heap.isEmpty() && !backward.heap.isEmpty()) {
+            if (forward.heap.minKey() + backward.heap.minKey() >= best) {
+                break;
+            }
+            boolean isForward = forward.heap.minKey() <= backward.heap.minKey();
+            SearchSpace sp = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            double sign = isForward ? 1 : -1;
+
+            int v = sp.settleNext();
+            if (budget.exceeded(forward.settledCount + backward.settledCount)) {
+                return new long[0];
+            }
+            if (other.reached(v) && sp.dist[v] + other.dist[v] < best) {
+                best = sp.dist[v] + other.dist[v];
+                meet = v;
+            }
+            double dv = sp.dist[v];
+            for (int e = g.begin(v); e < g.end(v); e++) {
+                int w = g.target(e);
+                double dw = dv + g.length(e);
+                if (!sp.reached(w)) {
+                    sp.open(w, dw, v, sign * averagePotential(g, w, start, end));
+                } else if (!sp.settled(w) && dw < sp.dist[w]) {
+                    sp.relax(w, dw, v);
                 } else {
-                    for (long neighbor : g.adjacent(next.thisPoint)) {
-                        if (!marked.contains(neighbor)) {
-                            double neighborDistFromStart = next.distFromStart
-                                    + g.distance(next.thisPoint, neighbor);
-                            double neighborDistFromFinish = g.distance(neighbor, next.endPoint);
-                            PathNode nextNode = new PathNode(next, neighbor,
-                                    next.endPoint, neighborDistFromStart, neighborDistFromFinish);
-                            if (next.prev == null || neighbor != next.prev.thisPoint) {
-                                minPQ.add(nextNode);
-                            }
-                        }
-                    }
+                    continue;
+                }
+                if (other.reached(w) && dw + other.dist[w] < best) {
+                    best = dw + other.dist[w];
+                    meet = w;
                 }
             }
         }
-        System.out.println("Path " + path);
+        if (meet < 0) {
+            return new long[0];
+        }
+        int head = 0;
+        for (int v = meet; v >= 0; v = forward.parent[v]) {
+            head++;
+        }
+        int length = head;
+        for (int v = backward.parent[meet]; v >= 0; v = backward.parent[v]) {
+            length++;
+        }
+        long[] path = new long[length];
+        for (int v = meet, i = head - 1; v >= 0; v = forward.parent[v], i--) {
+            path[i] = g.id(v);
+        }
+        for (int v = backward.parent[meet], i = head; v >= 0; v = backward.parent[v], i++) {
+            path[i] = g.id(v);
+        }
+        return path;
+    }
+
+    private static double averagePotential(CompactGraph g, int v, int start, int end) {
+        return (g.distance(v, end) - g.distance(start, v)) / 2;
+    }
+
+    private static SearchSpace searchSpace(CompactGraph g) {
+        return searchSpace(g, SPACE);
+    }
+
+    private static SearchSpace searchSpace(CompactGraph g, ThreadLocal<SearchSpace> local) {
+        SearchSpace sp = local.get();
+        if (sp == null || sp.capacity() < g.size()) {
+            sp = new SearchSpace(g.size());
+            local.set(sp);
+        }
+        return sp;
+    }
+
+    /** Follows parent links back from end and returns the node IDs in travel order. */
+    private static long[] pathTo(CompactGraph g, SearchSpace sp, int end) {
+        int length = 0;
+        for (int v = end; v >= 0; v = sp.parent[v]) {
+            length++;
+        }
+        long[] path = new long[length];
+        for (int v = end; v >= 0; v = sp.parent[v]) {
+            path[--length] = g.id(v);
+        }
         return path;
     }
 
@@ -86,7 +279,7 @@ public class Router {
             NavigationDirection nav = new NavigationDirection();
             nav.direction = dir;
             nav.distance = g.distance(cur, next);
-            String name = g.vertexRefs.get(cur).adjWay.get(next);
+            String name = g.wayName(cur, next);
             if (name == null)
                 nav.way = NavigationDirection.UNKNOWN_ROAD;
             else
@@ -138,7 +331,7 @@ public class Router {
             NavigationDirection currentNavigation = new NavigationDirection();
             currentNavigation.direction = direction;
             currentNavigation.distance = graph.distance(previousNode, currentNode);
-            String name = graph.vertexRefs.get(previousNode).adjWay.get(currentNode);
+            String name = graph.wayName(previousNode, currentNode);
             if (name == null)
                 currentNavigation.way = NavigationDirection.UNKNOWN_ROAD;
             else
@@ -195,39 +388,6 @@ public class Router {
         return direction;
     }
 
-    public static class PathNode implements Comparable<PathNode> {
-        PathNode prev;
-        double distFromStart;
-        double distFromFinish;
-        double priority;
-        long thisPoint;
-        long endPoint;
-
-        public PathNode(PathNode p, long t, long f, double fromS, double fromF) {
-            prev = p;
-            thisPoint = t;
-            endPoint = f;
-            distFromStart = fromS;
-            distFromFinish = fromF;
-            priority = distFromStart + distFromFinish;
-        }
-
-        public boolean arrived() {
-            return thisPoint == endPoint;
-        }
-
-        @Override
-        public int compareTo(PathNode other) {
-            if (priority == other.priority) {
-                return 0;
-            } else if (priority < other.priority) {
-                return -1;
-            } else {
-                return 1;
-            }
-        }
-    }
-
     /**
      * Class to represent a navigation direction, which consists of 3 attributes:
      * a direction to go, a way, and the distance to travel for.
@@ -0,0 +1,45 @@
+/**
+ * Limits on the work of one route query: the number of vertices the search may settle and
+ * a wall-clock deadline. Searches report their settled count after every vertex they settle
+ * and give up with an empty path once the budget is exceeded; the clock is only read every
+ * CLOCK_INTERVAL vertices. A budget belongs to a single query, which afterwards can ask
+ * whether an empty result means "unreachable" or "gave up".
+ */
+class SearchBudget {
+    /** Number of settled vertices between two reads of the clock. */
+    private static final int CLOCK_INTERVAL = 256;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long maxSettled;
+    private final long deadline;
+    private boolean exhausted = false;
+
+    /**
+     * @param maxSettled Most vertices the search may settle, over both directions.
+     * @param maxMillis Milliseconds from now after which the search gives up.
+     */
+    SearchBudget(long maxSettled, long maxMillis) {
+        this.maxSettled = maxSettled;
+        this.deadline = maxMillis == Long.MAX_VALUE
+                ? NO_DEADLINE : System.nanoTime() + maxMillis * 1_000_000L;
+    }
+
+    /** A budget that never runs out. */
+    static SearchBudget unlimited() {
+        return new SearchBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Returns true, and stays exhausted, once settled or the elapsed time is over budget. */
+    boolean exceeded(int settled) {
+        if (settled > maxSettled || (settled % CLOCK_INTERVAL == 0 && deadline != NO_DEADLINE
+                && System.nanoTime() - deadline > 0)) {
+            exhausted = true;
+        }
+        return exhausted;
+    }
+
+    /** True if a search stopped early because this budget ran out. */
+    boolean exhausted() {
+        return exhausted;
+    }
+}
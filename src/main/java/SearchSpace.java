@@ -0,0 +1,74 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread state for one shortest path search over a CompactGraph: tentative
+ * distances, parents, heuristic values and the open set. Instead of clearing the arrays
+ * between queries, every vertex carries the generation in which it was last touched, and
+ * starting a new search only bumps the generation. A vertex stamped with the current
+ * generation is open (reached, in the heap), one stamped with generation + 1 is settled.
+ */
+class SearchSpace {
+    final double[] dist;
+    final double[] potential;
+    final int[] parent;
+    private final int[] stamp;
+    final IndexedMinHeap heap;
+    private int generation = 0;
+    /** Number of vertices settled since the last reset. */
+    int settledCount = 0;
+
+    SearchSpace(int capacity) {
+        dist = new double[capacity];
+        potential = new double[capacity];
+        parent = new int[capacity];
+        stamp = new int[capacity];
+        heap = new IndexedMinHeap(capacity);
+    }
+
+    int capacity() {
+        return stamp.length;
+    }
+
+    /** Forgets the previous search in O(1). */
+    void reset() {
+        if (generation >= Integer.MAX_VALUE - 2) {
+            Arrays.fill(stamp, 0);
+            generation = 0;
+        }
+        generation += 2;
+        settledCount = 0;
+        heap.clear();
+    }
+
+    boolean reached(int v) {
+        return stamp[v] >= generation;
+    }
+
+    boolean settled(int v) {
+        return stamp[v] == generation + 1;
+    }
+
+    /** Opens v for the first time in this search and pushes it with key d + h. */
+    void open(int v, double d, int from, double h) {
+        stamp[v] = generation;
+        dist[v] = d;
+        parent[v] = from;
+        potential[v] = h;
+        heap.push(v, d + h);
+    }
+
+    /** Lowers the distance of the open vertex v to d. */
+    void relax(int v, double d, int from) {
+        dist[v] = d;
+        parent[v] = from;
+        heap.decrease(v, d + potential[v]);
+    }
+
+    /** Pops the open vertex with the smallest key and marks it settled. */
+    int settleNext() {
+        int v = heap.pop();
+        stamp[v] = generation + 1;
+        settledCount++;
+        return v;
+    }
+}
@@ -0,0 +1,112 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Decoded map tiles, so that the tiles of a hot viewport are read from disk and run through
+ * the PNG decoder once instead of on every raster request. Tiles are keyed by
+ * (depth, x, y) packed into a long, stored as TYPE_INT_RGB so that compositing never has to
+ * convert them, weighed by their pixel bytes, and evicted LRU under a byte budget.
+ * The cached images are shared between requests and must only be read.
+ */
+class TileCache {
+    /** Tile file names as listed in a render grid, e.g. d3_x1_y5.png. */
+    private static final Pattern TILE_NAME = Pattern.compile("d(\\d+)_x(\\d+)_y(\\d+)\\.png");
+    /** Independently locked segments of the underlying LruCache. */
+    private static final int SEGMENTS = 16;
+
+    private final String root;
+    private final LruCache<Long, BufferedImage> cache;
+
+    /**
+     * @param root Directory holding the tile images, ending in a separator.
+     * @param maxBytes Byte budget for decoded pixels.
+     */
+    TileCache(String root, long maxBytes) {
+        this.root = root;
+        this.cache = new LruCache<>(maxBytes, SEGMENTS, TileCache::weight);
+    }
+
+    /**
+     * Returns the decoded tile with the given file name, e.g. "d3_x1_y5.png", or null if it
+     * cannot be read. Names that do not follow the tile naming scheme are read uncached.
+     */
+    BufferedImage get(String fileName) {
+        long key = key(fileName);
+        if (key < 0) {
+            return read(fileName);
+        }
+        BufferedImage tile = cache.get(key);
+        if (tile == null) {
+            tile = read(fileName);
+            if (tile != null) {
+                cache.put(key, tile);
+            }
+        }
+        return tile;
+    }
+
+    /** Returns the decoded tile at (depth, x, y), or null if it cannot be read. */
+    BufferedImage get(int depth, int x, int y) {
+        return get("d" + depth + "_x" + x + "_y" + y + ".png");
+    }
+
+    /** Packs a tile position into a cache key: 8 bits of depth and 28 bits per axis. */
+    static long key(int depth, int x, int y) {
+        return ((long) depth << 56) | ((long) x << 28) | y;
+    }
+
+    /** Key of the tile with the given file name, or -1 if it is not a tile name. */
+    static long key(String fileName) {
+        Matcher m = TILE_NAME.matcher(fileName);
+        if (!m.matches()) {
+            return -1;
+        }
+        return key(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                Integer.parseInt(m.group(3)));
+    }
+
+    /** Fraction of lookups served from memory. */
+    double hitRatio() {
+        long hits = cache.hits();
+        long total = hits + cache.misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Hit, miss and eviction counters along with the cache occupancy. */
+    Map<String, Object> stats() {
+        return cache.stats();
+    }
+
+    private BufferedImage read(String fileName) {
+        try {
+            BufferedImage img = ImageIO.read(new File(root + fileName));
+            return img == null ? null : toIntRgb(img);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Converts img to TYPE_INT_RGB, the type of the raster it is composited into. */
+    private static BufferedImage toIntRgb(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return img;
+        }
+        BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = rgb.getGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    private static long weight(BufferedImage img) {
+        return 64 + 4L * img.getWidth() * img.getHeight();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static spark.Spark.halt;
+
+/**
+ * Serves single tile files for the /tiles/:depth/:x/:y endpoint, so that clients and
+ * intermediate caches can fetch just the tiles they lack. Files are streamed to the response
+ * with FileChannel.transferTo, never decoded or encoded. Every response carries a strong
+ * ETag derived from the file length and modification time and a Cache-Control header, and
+ * conditional GETs with If-None-Match or If-Modified-Since are answered with 304.
+ */
+class TileFiles {
+    /** Tiles only change when the image set is replaced, so let clients keep them a day. */
+    private static final String CACHE_CONTROL = "public, max-age=86400";
+    private static final int NOT_MODIFIED = 304;
+    private static final int NOT_FOUND = 404;
+
+    /**
+     * Writes the tile named by the request's :depth, :x and :y parameters from root to the
+     * response. The y parameter may carry a .png suffix.
+     * @return The empty body, as the file has been written to the raw response already.
+     */
+    static Object serve(String root, spark.Request req, spark.Response res) throws IOException {
+        int depth = parse(req.params(":depth"));
+        int x = parse(req.params(":x"));
+        String yParam = req.params(":y");
+        int y = parse(yParam != null && yParam.endsWith(".png")
+                ? yParam.substring(0, yParam.length() - 4) : yParam);
+        File file = new File(root + String.format("d%d_x%d_y%d.png", depth, x, y));
+        if (depth < 0 || x < 0 || y < 0 || !file.isFile()) {
+            halt(NOT_FOUND, "No such tile.");
+        }
+
+        long length = file.length();
+        long modified = file.lastModified();
+        String etag = etag(length, modified);
+        HttpServletResponse raw = res.raw();
+        res.header("ETag", etag);
+        res.header("Cache-Control", CACHE_CONTROL);
+        raw.setDateHeader("Last-Modified", modified);
+        if (notModified(req.raw(), etag, modified)) {
+            res.status(NOT_MODIFIED);
+            return "";
+        }
+
+        res.type("image/png");
+        raw.setContentLengthLong(length);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(raw.getOutputStream());
+            long position = 0;
+            while (position < length) {
+                long sent = in.transferTo(position, length - position, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+        }
+        return "";
+    }
+
+    /** Strong validator for a file: its length and modification time. */
+    static String etag(long length, long modified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    /**
+     * True if the client's copy is current. If-None-Match takes precedence over
+     * If-Modified-Since, which has one second resolution.
+     */
+    static boolean notModified(HttpServletRequest req, String etag, long modified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        long since = req.getDateHeader("If-Modified-Since");
+        return since >= 0 && modified / 1000 <= since / 1000;
+    }
+
+    /** True if the If-None-Match header value lists etag or is "*". */
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int parse(String param) {
+        try {
+            return param == null ? -1 : Integer.parseInt(param);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
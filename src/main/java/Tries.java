@@ -1,82 +1,496 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Location names and the ids of the nodes carrying them, in a radix (PATRICIA) trie: each
+ * edge is labeled with a run of characters rather than one character, so the trie only has
+ * nodes where names branch or end. Nodes are rows of parallel int arrays. Edge labels are
+ * runs in one shared char pool, and splitting an edge just splits its run. The ids of a
+ * name are chained through one shared long pool, in the order they were put. Children are
+ * kept in sibling lists sorted by their first character, so names come out in order.
+ * <p>
+ * For autocomplete every node also keeps its top TOP_K names: the names below it carried
+ * by the most nodes, then the shortest, then the first in order. Since the rank of a name
+ * only rises as ids are put, each put just offers its name to the nodes on its path, and
+ * a ranked prefix lookup costs the prefix length plus the names returned.
+ * <p>
+ * Fuzzy prefix lookups walk the trie in step with a Levenshtein automaton for the prefix,
+ * simulated one row of edit distances per character, and leave a branch as soon as no
+ * continuation can come within the allowed edits or improve on a match already found
+ * above it. A subtree whose path matches takes its names from its top list.
+ */
 public class Tries {
-    private static final int R = 1024;
-    private Node root = new Node();
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    /** Most names kept ranked per node, and so returned by a ranked prefix lookup. */
+    static final int TOP_K = 20;
 
-    private static class Node {
-        private boolean exists;
-        private Node[] next;
-        private List<Long> nodeID;
+    /** Number of nodes. */
+    private int size;
+    /** Per node: first child, next sibling, label run, and first and last id in the pool. */
+    private int[] firstChild = new int[INITIAL_CAPACITY];
+    private int[] nextSibling = new int[INITIAL_CAPACITY];
+    private int[] labelStart = new int[INITIAL_CAPACITY];
+    private int[] labelLength = new int[INITIAL_CAPACITY];
+    private int[] firstId = new int[INITIAL_CAPACITY];
+    private int[] lastId = new int[INITIAL_CAPACITY];
+    /** Per node: parent, length of its name, and number of ids carrying that name. */
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private int[] depth = new int[INITIAL_CAPACITY];
+    private int[] count = new int[INITIAL_CAPACITY];
+    /** The best ranked name nodes below each node, TOP_K slots per node. */
+    private int[] top = new int[INITIAL_CAPACITY * TOP_K];
+    private int[] topSize = new int[INITIAL_CAPACITY];
 
-        public Node() {
-            next = new Node[R];
-            exists = false;
-            nodeID = new ArrayList<>();
-        }
+    /** The edge labels, packed end to end. */
+    private char[] labels = new char[INITIAL_CAPACITY];
+    private int labelsUsed;
+
+    /** The ids of all names, each followed in its chain by the entry at nextId. */
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private int[] nextId = new int[INITIAL_CAPACITY];
+    private int idCount;
+
+    public Tries() {
+        newNode(NONE, 0, 0);
     }
 
-    public void put(String key, long id) {
-        put(root, key, id, 0);
+    /** Reads back a trie written by write. */
+    Tries(GraphSnapshot.In in) {
+        size = in.getInt();
+        labelsUsed = in.getInt();
+        idCount = in.getInt();
+        firstChild = in.getInts();
+        nextSibling = in.getInts();
+        labelStart = in.getInts();
+        labelLength = in.getInts();
+        firstId = in.getInts();
+        lastId = in.getInts();
+        parent = in.getInts();
+        depth = in.getInts();
+        count = in.getInts();
+        top = in.getInts();
+        topSize = in.getInts();
+        labels = in.getChars();
+        ids = in.getLongs();
+        nextId = in.getInts();
+    }
+
+    /** Writes the rows and pools as they are, spare capacity included, so puts can follow. */
+    void write(GraphSnapshot.Out out) {
+        out.putInt(size);
+        out.putInt(labelsUsed);
+        out.putInt(idCount);
+        out.putInts(firstChild);
+        out.putInts(nextSibling);
+        out.putInts(labelStart);
+        out.putInts(labelLength);
+        out.putInts(firstId);
+        out.putInts(lastId);
+        out.putInts(parent);
+        out.putInts(depth);
+        out.putInts(count);
+        out.putInts(top);
+        out.putInts(topSize);
+        out.putChars(labels);
+        out.putLongs(ids);
+        out.putInts(nextId);
     }
 
-    private Node put(Node n, String key, long id, int d) {
-        if (n == null) {
-            n = new Node();
+    public void put(String key, long id) {
+        int node = ROOT;
+        int d = 0;
+        while (d < key.length()) {
+            int child = child(node, key.charAt(d));
+            if (child == NONE) {
+                child = newNode(node, appendLabel(key, d), key.length() - d);
+                link(node, child);
+                node = child;
+                break;
+            }
+            int common = common(child, key, d);
+            if (common < labelLength[child]) {
+                child = split(node, child, common);
+            }
+            node = child;
+            d += common;
+        }
+        addId(node, id);
+        count[node]++;
+        for (int n = node; n != NONE; n = parent[n]) {
+            offer(n, node);
         }
+    }
 
-        if (d == key.length()) {
-            n.exists = true;
-            n.nodeID.add(id);
-            return n;
+    /** All names starting with pre, in order. */
+    public List<String> keysWithPrefix(String pre) {
+        List<String> keys = new ArrayList<>();
+        int node = prefixNode(pre);
+        if (node != NONE) {
+            collect(node, new StringBuilder(name(node)), keys);
         }
+        return keys;
+    }
 
-        char c = key.charAt(d);
-        n.next[c] = put(n.next[c], key, id, d+1);
-        return n;
+    /**
+     * The best ranked names starting with pre, at most limit of them and never more than
+     * TOP_K, best first.
+     */
+    public List<String> keysWithPrefix(String pre, int limit) {
+        List<String> keys = new ArrayList<>();
+        int node = prefixNode(pre);
+        if (node != NONE) {
+            int n = Math.min(limit, topSize[node]);
+            for (int i = 0; i < n; i++) {
+                keys.add(name(top[node * TOP_K + i]));
+            }
+        }
+        return keys;
     }
 
-    public List<String> keysWithPrefix(String pre) {
+    /**
+     * The best ranked names starting with a string within maxEdits edits (insertions,
+     * deletions or substitutions) of pre, at most limit of them, those needing the fewest
+     * edits first and otherwise ranked as above. The walk enters at most maxVisits nodes;
+     * once they are used up, only the matches found so far are returned.
+     */
+    public List<String> fuzzyKeysWithPrefix(String pre, int maxEdits, int limit,
+                                            int maxVisits) {
         List<String> keys = new ArrayList<>();
-        Node x = root;
-        for (int i = 0; i < pre.length(); i++) {
-            char c = pre.charAt(i);
-            x = x.next[c];
+        Fuzzy fuzzy = new Fuzzy(pre, maxVisits);
+        if (pre.length() <= maxEdits) {
+            fuzzy.matches.add(new int[]{ROOT, pre.length()});
+        } else {
+            fuzzy.walk(ROOT, maxEdits + 1);
+        }
+        List<int[]> matches = fuzzy.matches;
+        matches.sort((a, b) -> a[1] - b[1]);
+
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < matches.size() && keys.size() < limit; ) {
+            /* Rank the names of all subtrees matching with the same number of edits. */
+            int edits = matches.get(i)[1];
+            List<Integer> names = new ArrayList<>();
+            for (; i < matches.size() && matches.get(i)[1] == edits; i++) {
+                /* Past its first limit new names, a subtree has none good enough. */
+                int node = matches.get(i)[0];
+                for (int j = 0, added = 0; j < topSize[node] && added < limit; j++) {
+                    if (seen.add(top[node * TOP_K + j])) {
+                        names.add(top[node * TOP_K + j]);
+                        added++;
+                    }
+                }
+            }
+            names.sort((a, b) -> a.equals(b) ? 0 : ranksBefore(a, b) ? -1 : 1);
+            for (int j = 0; j < names.size() && keys.size() < limit; j++) {
+                keys.add(name(names.get(j)));
+            }
         }
-        collect(x, pre, keys);
         return keys;
     }
 
-    public boolean keysThatMatch(String key) {
-        Node x = root;
-        for (int i = 0; i < key.length(); i++) {
-            char c = key.charAt(i);
-            x = x.next[c];
+    /** State of one fuzzy prefix walk. */
+    private final class Fuzzy {
+        private final char[] pre;
+        /** Edit distances of the prefixes of pre to the path, at each path length. */
+        private int[][] rows = new int[INITIAL_CAPACITY][];
+        private int visits;
+        /** Pairs of a node whose subtree matches and the edits it takes. */
+        final List<int[]> matches = new ArrayList<>();
+
+        Fuzzy(String pre, int maxVisits) {
+            this.pre = pre.toCharArray();
+            this.visits = maxVisits;
+            rows[0] = new int[this.pre.length + 1];
+            for (int i = 0; i <= this.pre.length; i++) {
+                rows[0][i] = i;
+            }
+        }
+
+        /**
+         * Walks the children of node, collecting the subtrees that match pre with fewer
+         * edits than best, the fewest found on the path so far. Each node entered uses up
+         * one visit.
+         */
+        void walk(int node, int best) {
+            int n = pre.length;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (visits-- <= 0) {
+                    return;
+                }
+                int at = depth[node];
+                int edits = best;
+                boolean live = true;
+                for (int i = 0; i < labelLength[child] && live; i++) {
+                    int min = step(at++, labels[labelStart[child] + i]);
+                    edits = Math.min(edits, rows[at][n]);
+                    /* No continuation gets within fewer edits than the smallest in the row. */
+                    live = min < edits;
+                }
+                if (edits < best) {
+                    matches.add(new int[]{child, edits});
+                }
+                if (live) {
+                    walk(child, edits);
+                }
+            }
         }
-        return x.exists;
+
+        /**
+         * Fills the row for the path up to length at extended by c, and returns its
+         * smallest distance.
+         */
+        private int step(int at, char c) {
+            if (at + 1 == rows.length) {
+                rows = Arrays.copyOf(rows, 2 * rows.length);
+            }
+            if (rows[at + 1] == null) {
+                rows[at + 1] = new int[pre.length + 1];
+            }
+            int[] row = rows[at];
+            int[] next = rows[at + 1];
+            next[0] = row[0] + 1;
+            int min = next[0];
+            for (int i = 1; i < row.length; i++) {
+                int substitute = row[i - 1] + (pre[i - 1] == c ? 0 : 1);
+                next[i] = Math.min(substitute, Math.min(row[i], next[i - 1]) + 1);
+                min = Math.min(min, next[i]);
+            }
+            return min;
+        }
+    }
+
+    public boolean keysThatMatch(String key) {
+        int node = node(key);
+        return node != NONE && firstId[node] != NONE;
     }
 
     public List<Long> getNodeByLoc(String locName) {
-        Node x = root;
-        for (int i = 0; i < locName.length(); i++) {
-            char c = locName.charAt(i);
-            x = x.next[c];
+        int node = node(locName);
+        if (node == NONE || firstId[node] == NONE) {
+            return null;
+        }
+        List<Long> result = new ArrayList<>();
+        for (int i = firstId[node]; i != NONE; i = nextId[i]) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * The highest node whose name starts with pre, so that the names below it are exactly
+     * those starting with pre, or NONE if there are none.
+     */
+    private int prefixNode(String pre) {
+        int node = ROOT;
+        int d = 0;
+        while (d < pre.length()) {
+            node = child(node, pre.charAt(d));
+            if (node == NONE) {
+                return NONE;
+            }
+            int common = common(node, pre, d);
+            if (common < Math.min(pre.length() - d, labelLength[node])) {
+                return NONE;
+            }
+            d += common;
+        }
+        return node;
+    }
+
+    /** The name of node, spelled by the labels on the path from the root. */
+    private String name(int node) {
+        char[] name = new char[depth[node]];
+        for (int n = node; n != ROOT; n = parent[n]) {
+            System.arraycopy(labels, labelStart[n], name, depth[n] - labelLength[n],
+                    labelLength[n]);
         }
-        if (x.exists) {
-            return x.nodeID;
+        return new String(name);
+    }
+
+    /** Whether name node a ranks before name node b. */
+    private boolean ranksBefore(int a, int b) {
+        if (count[a] != count[b]) {
+            return count[a] > count[b];
+        }
+        if (depth[a] != depth[b]) {
+            return depth[a] < depth[b];
+        }
+        return name(a).compareTo(name(b)) < 0;
+    }
+
+    /** Puts the name node, whose rank has just risen, into the top names of node n. */
+    private void offer(int n, int name) {
+        int base = n * TOP_K;
+        int size = topSize[n];
+        int at = 0;
+        while (at < size && top[base + at] != name) {
+            at++;
+        }
+        if (at == size) {
+            if (size == TOP_K && !ranksBefore(name, top[base + size - 1])) {
+                return;
+            }
+            at = Math.min(size, TOP_K - 1);
+            topSize[n] = Math.min(size + 1, TOP_K);
+        }
+        while (at > 0 && ranksBefore(name, top[base + at - 1])) {
+            top[base + at] = top[base + at - 1];
+            at--;
+        }
+        top[base + at] = name;
+    }
+
+    /** The node reached by exactly key, or NONE. */
+    private int node(String key) {
+        int node = ROOT;
+        int d = 0;
+        while (d < key.length()) {
+            node = child(node, key.charAt(d));
+            if (node == NONE || common(node, key, d) < labelLength[node]) {
+                return NONE;
+            }
+            d += labelLength[node];
+        }
+        return node;
+    }
+
+    /** The child of node whose label starts with c, or NONE. */
+    private int child(int node, char c) {
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            char first = labels[labelStart[child]];
+            if (first >= c) {
+                return first == c ? child : NONE;
+            }
+        }
+        return NONE;
+    }
+
+    /** Length of the common prefix of the label of node and key from index d on. */
+    private int common(int node, String key, int d) {
+        int start = labelStart[node];
+        int n = Math.min(labelLength[node], key.length() - d);
+        int i = 0;
+        while (i < n && labels[start + i] == key.charAt(d + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /** Adds child to the children of parent, keeping them sorted by first character. */
+    private void link(int parent, int child) {
+        char c = labels[labelStart[child]];
+        int prev = NONE;
+        int next = firstChild[parent];
+        while (next != NONE && labels[labelStart[next]] < c) {
+            prev = next;
+            next = nextSibling[next];
+        }
+        nextSibling[child] = next;
+        if (prev == NONE) {
+            firstChild[parent] = child;
         } else {
-            return null;
+            nextSibling[prev] = child;
+        }
+    }
+
+    /**
+     * Splits the edge into child after its first k characters, returning the new node in
+     * between, which takes the place of child among the children of parent.
+     */
+    private int split(int parent, int child, int k) {
+        int mid = newNode(parent, labelStart[child], k);
+        nextSibling[mid] = nextSibling[child];
+        if (firstChild[parent] == child) {
+            firstChild[parent] = mid;
+        } else {
+            int prev = firstChild[parent];
+            while (nextSibling[prev] != child) {
+                prev = nextSibling[prev];
+            }
+            nextSibling[prev] = mid;
+        }
+        labelStart[child] += k;
+        labelLength[child] -= k;
+        nextSibling[child] = NONE;
+        firstChild[mid] = child;
+        this.parent[child] = mid;
+        /* The names below mid are exactly those below child. */
+        System.arraycopy(top, child * TOP_K, top, mid * TOP_K, topSize[child]);
+        topSize[mid] = topSize[child];
+        return mid;
+    }
+
+    private int newNode(int parentNode, int start, int length) {
+        if (size == firstChild.length) {
+            int capacity = size + (size >> 1);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            labelStart = Arrays.copyOf(labelStart, capacity);
+            labelLength = Arrays.copyOf(labelLength, capacity);
+            firstId = Arrays.copyOf(firstId, capacity);
+            lastId = Arrays.copyOf(lastId, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            count = Arrays.copyOf(count, capacity);
+            top = Arrays.copyOf(top, capacity * TOP_K);
+            topSize = Arrays.copyOf(topSize, capacity);
+        }
+        firstChild[size] = NONE;
+        nextSibling[size] = NONE;
+        labelStart[size] = start;
+        labelLength[size] = length;
+        firstId[size] = NONE;
+        lastId[size] = NONE;
+        parent[size] = parentNode;
+        depth[size] = parentNode == NONE ? length : depth[parentNode] + length;
+        count[size] = 0;
+        topSize[size] = 0;
+        return size++;
+    }
+
+    /** Appends key from index d on to the label pool and returns where it starts. */
+    private int appendLabel(String key, int d) {
+        int length = key.length() - d;
+        if (labelsUsed + length > labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(labelsUsed + length,
+                    labels.length + (labels.length >> 1)));
+        }
+        key.getChars(d, key.length(), labels, labelsUsed);
+        labelsUsed += length;
+        return labelsUsed - length;
+    }
+
+    private void addId(int node, long id) {
+        if (idCount == ids.length) {
+            int capacity = idCount + (idCount >> 1);
+            ids = Arrays.copyOf(ids, capacity);
+            nextId = Arrays.copyOf(nextId, capacity);
+        }
+        ids[idCount] = id;
+        nextId[idCount] = NONE;
+        if (firstId[node] == NONE) {
+            firstId[node] = idCount;
+        } else {
+            nextId[lastId[node]] = idCount;
         }
+        lastId[node] = idCount;
+        idCount++;
     }
 
-    private void collect(Node n, String pre, List<String> l) {
-        if (n == null) {return;}
-        if (n.exists) {
-            l.add(pre);
+    private void collect(int node, StringBuilder path, List<String> l) {
+        if (firstId[node] != NONE) {
+            l.add(path.toString());
         }
-        for (char c = 0; c < R; c++) {
-            collect(n.next[c], pre + c, l);
+        int length = path.length();
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            path.append(labels, labelStart[child], labelLength[child]);
+            collect(child, path, l);
+            path.setLength(length);
         }
     }
 }
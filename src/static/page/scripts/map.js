@@ -29,6 +29,8 @@ $(function() {
     // psueod-lock
     var getInProgress = false;
     var route_params = {};
+    // id of the route drawn on the map, handed out by /route
+    var route_id = null;
     var map;
     var dest;
     var tx = 0, ty = 0;
@@ -101,6 +103,14 @@ $(function() {
         }
     }
 
+    /* Slow or metered connections get 8-bit palette rasters of just the viewport, several
+       times smaller than full tile grids in truecolor. */
+    function slowLink() {
+        const connection = navigator.connection;
+        return !!connection && (connection.saveData
+            || ['slow-2g', '2g', '3g'].indexOf(connection.effectiveType) >= 0);
+    }
+
     function updateImg(successCallback) {
         /* Synchronous ajax call for image update.
            Could be async for better experience but then user spam locks up the server.
@@ -108,49 +118,58 @@ $(function() {
            updates which are called before ajax() is called #sigh #why #justjavascriptthings */
         $loadingStatus.show();
         getInProgress = true;
-        $.get({
-            async: true,
-            url: raster_server,
-            data: params,
-            success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingStatus.hide();
-                }
-            },
-            error: function() {
-                getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
-            },
-            dataType: 'json'
-        });
+        /* Ask for the PNG itself rather than Base64 inside Json; the raster bounds come
+           back in X-Raster-* headers. jQuery 2 cannot hand out binary bodies, hence XHR. */
+        const xhr = new XMLHttpRequest();
+        const slow = slowLink();
+        const raster_params = $.extend({format: 'png', palette: slow, viewport: slow}, params);
+        if (route_id) {
+            raster_params.route_id = route_id;
+        }
+        xhr.open('GET', raster_server + '?' + $.param(raster_params));
+        xhr.responseType = 'blob';
+        xhr.onload = function() {
+            if (xhr.status !== 200 && xhr.status !== 204) {
+                xhr.onerror();
+                return;
+            }
+            $loadingStatus.hide();
+            if (xhr.getResponseHeader('X-Raster-Query-Success') !== 'true') {
+                return;
+            }
+            if (map.src.startsWith('blob:')) {
+                URL.revokeObjectURL(map.src);
+            }
+            map.src = URL.createObjectURL(xhr.response);
+            console.log('Updating map with image length: ' + xhr.response.size);
+            ullon_bound = parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lon'));
+            ullat_bound = parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lat'));
+            lrlon_bound = parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lon'));
+            lrlat_bound = parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lat'));
+            current_level = parseInt(xhr.getResponseHeader('X-Raster-Depth'), 10);
+            img_w = parseInt(xhr.getResponseHeader('X-Raster-Width'), 10);
+            img_h = parseInt(xhr.getResponseHeader('X-Raster-Height'), 10);
+            wdpp = (lrlon_bound - ullon_bound) / img_w;
+            hdpp = (ullat_bound - lrlat_bound) / img_h;
+            // Compute initial transform
+            tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+            ty = (params.ullat - ullat_bound) * (1 / hdpp);
+            rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+            rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+            updateMarkers();
+            getInProgress = false;
+            if (successCallback) {
+                successCallback();
+            }
+        };
+        xhr.onerror = function() {
+            getInProgress = false;
+            $errorStatus.show();
+            setTimeout(function() {
+                $errorStatus.fadeOut();
+            }, 4000);
+        };
+        xhr.send();
     }
 
     function updateT() {
@@ -173,6 +192,7 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
+                route_id = data.route_id || null;
                 updateImg();
                 if (data.routing_success) {
                     $directionsText.html(data.directions);
@@ -323,16 +343,26 @@ $(function() {
     /* Hide scroll bar */
     $('body').css('overflow', 'hidden');
 
+    /* Where search results are ranked from: the middle of the viewport. */
+    function searchBias() {
+        return {lat: (params.ullat + params.lrlat) / 2, lon: (params.ullon + params.lrlon) / 2};
+    }
+
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.getJSON(search, $.extend({term: request.term}, searchBias()), response)
+                  .fail(function() {
+                      response([]);
+                  });
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
                   dataType: 'json',
-                  data: { term: ui.item.value, full: true},
+                  data: $.extend({term: ui.item.value, full: true}, searchBias()),
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
@@ -407,7 +437,9 @@ $(function() {
         $.get({
             async: true,
             url: clear_route,
+            data: route_id ? {route_id: route_id} : {},
             success: function() {
+                route_id = null;
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
                 update();
@@ -0,0 +1,231 @@
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares Rasterer with the tile selection it replaced, which walked down the quadtree
+ * allocating four child tiles per level and found the tile range with accumulating scans.
+ * Replays the queries of raster_params.txt and random queries over the whole map at every
+ * zoom level, checks that both selections agree, and times them. Not a test; run with
+ * <pre>java -cp target/classes:target/test-classes RastererBenchmark [queries]</pre>
+ * from the project directory.
+ */
+public class RastererBenchmark {
+    private static final int MAX_DEPTH = 7;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        List<Map<String, Double>> queries = paramsFromFile("raster_params.txt");
+        Random random = new Random(19);
+        for (int i = 0; i < count; i++) {
+            queries.add(randomQuery(random));
+        }
+
+        Rasterer rasterer = new Rasterer();
+        int gaveUp = 0;
+        for (Map<String, Double> q : queries) {
+            Map<String, Object> expected = zoomWalk(q);
+            Map<String, Object> actual = rasterer.getMapRaster(q);
+            if (!(Boolean) expected.get("query_success") && (Boolean) actual.get("query_success")) {
+                /* The walk gave up on centers exactly on a quadrant edge. */
+                gaveUp++;
+            } else if (!agree(expected, actual)) {
+                throw new AssertionError("Selections differ for " + q + ":\n" + expected
+                        + "\n" + actual);
+            }
+        }
+        System.out.printf("%d queries agree (%d only the new selection answers)%n",
+                queries.size(), gaveUp);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Map<String, Double> q : queries) {
+                zoomWalk(q);
+            }
+            long middle = System.nanoTime();
+            for (Map<String, Double> q : queries) {
+                rasterer.getMapRaster(q);
+            }
+            long end = System.nanoTime();
+            System.out.printf("round %d: zoom walk %.2f us/query, arithmetic %.2f us/query%n",
+                    round, (middle - start) / 1e3 / queries.size(),
+                    (end - middle) / 1e3 / queries.size());
+        }
+    }
+
+    private static List<Map<String, Double>> paramsFromFile(String file) throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(file), Charset.defaultCharset());
+        List<Map<String, Double>> params = new ArrayList<>();
+        /* Two comment lines, then six values per query. */
+        for (int i = 2; i + 6 <= lines.size(); i += 6) {
+            Map<String, Double> q = new HashMap<>();
+            q.put("ullon", Double.parseDouble(lines.get(i)));
+            q.put("ullat", Double.parseDouble(lines.get(i + 1)));
+            q.put("lrlon", Double.parseDouble(lines.get(i + 2)));
+            q.put("lrlat", Double.parseDouble(lines.get(i + 3)));
+            q.put("w", Double.parseDouble(lines.get(i + 4)));
+            q.put("h", Double.parseDouble(lines.get(i + 5)));
+            params.add(q);
+        }
+        return params;
+    }
+
+    /** A box from a ten-thousandth to a tenth of a degree wide, near or on the map. */
+    private static Map<String, Double> randomQuery(Random random) {
+        double width = Math.pow(10, -4 + 3 * random.nextDouble());
+        double height = width * (0.5 + random.nextDouble());
+        double lon = MapServer.ROOT_ULLON - 0.01 + random.nextDouble() * 0.11;
+        double lat = MapServer.ROOT_LRLAT - 0.01 + random.nextDouble() * 0.09;
+        Map<String, Double> q = new HashMap<>();
+        q.put("ullon", lon - width / 2);
+        q.put("lrlon", lon + width / 2);
+        q.put("ullat", lat + height / 2);
+        q.put("lrlat", lat - height / 2);
+        q.put("w", 200.0 + random.nextInt(1200));
+        q.put("h", 200.0 + random.nextInt(900));
+        return q;
+    }
+
+    private static boolean agree(Map<String, Object> expected, Map<String, Object> actual) {
+        if (!expected.get("query_success").equals(actual.get("query_success"))) {
+            return false;
+        }
+        if (!(Boolean) expected.get("query_success")) {
+            return true;
+        }
+        for (String key : new String[]{"raster_ul_lon", "raster_ul_lat", "raster_lr_lon",
+            "raster_lr_lat"}) {
+            if (Math.abs((Double) expected.get(key) - (Double) actual.get(key)) > 1e-9) {
+                return false;
+            }
+        }
+        return expected.get("depth").equals(actual.get("depth"))
+                && Arrays.deepEquals((Object[]) expected.get("render_grid"),
+                        (Object[]) actual.get("render_grid"));
+    }
+
+    /** The replaced selection, without its per-request logging. */
+    private static Map<String, Object> zoomWalk(Map<String, Double> params) {
+        Map<String, Object> results = new HashMap<>();
+        results.put("query_success", false);
+        if (params.get("ullon") > MapServer.ROOT_LRLON
+                || params.get("lrlon") < MapServer.ROOT_ULLON
+                || params.get("lrlat") > MapServer.ROOT_ULLAT
+                || params.get("ullat") < MapServer.ROOT_LRLAT) {
+            return results;
+        }
+        double queryDpp = (params.get("lrlon") - params.get("ullon")) / params.get("w");
+        double lonMid = (params.get("ullon") + params.get("lrlon")) / 2;
+        double latMid = (params.get("ullat") + params.get("lrlat")) / 2;
+        Tile tile = new Tile(0, MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT,
+                (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / MapServer.TILE_SIZE);
+        int steps = 0;
+        while (!(tile.lonDpp <= queryDpp || tile.depth == MAX_DEPTH)
+                || !tile.contains(lonMid, latMid)) {
+            tile = tile.child(lonMid, latMid);
+            if (++steps > 100) {
+                return results;
+            }
+        }
+
+        int n = (int) Math.sqrt(Math.pow(4, tile.depth));
+        double width = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n;
+        double height = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+
+        /* Each scan steps past the query edge once too far if it moved at all. */
+        int x1 = 0;
+        double ullon = MapServer.ROOT_ULLON;
+        for (int i = 0; i < n && ullon < params.get("ullon"); i++) {
+            ullon += width;
+            x1 = i;
+        }
+        if (MapServer.ROOT_ULLON < params.get("ullon")) {
+            ullon -= width;
+        }
+        int x2 = n - 1;
+        double lrlon = MapServer.ROOT_LRLON;
+        for (int i = n - 1; i >= 0 && lrlon > params.get("lrlon"); i--) {
+            lrlon -= width;
+            x2 = i;
+        }
+        if (MapServer.ROOT_LRLON > params.get("lrlon")) {
+            lrlon += width;
+        }
+        int y1 = 0;
+        double ullat = MapServer.ROOT_ULLAT;
+        for (int i = 0; i < n && ullat > params.get("ullat"); i++) {
+            ullat -= height;
+            y1 = i;
+        }
+        if (MapServer.ROOT_ULLAT > params.get("ullat")) {
+            ullat += height;
+        }
+        int y2 = n - 1;
+        double lrlat = MapServer.ROOT_LRLAT;
+        for (int i = n - 1; i >= 0 && lrlat < params.get("lrlat"); i--) {
+            lrlat += height;
+            y2 = i;
+        }
+        if (MapServer.ROOT_LRLAT < params.get("lrlat")) {
+            lrlat -= height;
+        }
+
+        String[][] renderGrid = new String[y2 - y1 + 1][x2 - x1 + 1];
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                renderGrid[y - y1][x - x1] = String.format("d%d_x%d_y%d.png", tile.depth, x, y);
+            }
+        }
+        results.put("raster_ul_lon", ullon);
+        results.put("raster_ul_lat", ullat);
+        results.put("raster_lr_lon", lrlon);
+        results.put("raster_lr_lat", lrlat);
+        results.put("depth", tile.depth);
+        results.put("render_grid", renderGrid);
+        results.put("query_success", true);
+        return results;
+    }
+
+    private static final class Tile {
+        final int depth;
+        final double ulLon, ulLat, lrLon, lrLat, lonDpp;
+
+        Tile(int depth, double ulLon, double ulLat, double lrLon, double lrLat, double lonDpp) {
+            this.depth = depth;
+            this.ulLon = ulLon;
+            this.ulLat = ulLat;
+            this.lrLon = lrLon;
+            this.lrLat = lrLat;
+            this.lonDpp = lonDpp;
+        }
+
+        boolean contains(double lon, double lat) {
+            return ulLon < lon && lrLon > lon && ulLat > lat && lrLat < lat;
+        }
+
+        /** The child containing the point, trying all four in turn, or this tile if none. */
+        Tile child(double lon, double lat) {
+            double midLon = (ulLon + lrLon) / 2;
+            double midLat = (ulLat + lrLat) / 2;
+            Tile[] children = {
+                new Tile(depth + 1, ulLon, ulLat, midLon, midLat, lonDpp / 2),
+                new Tile(depth + 1, midLon, ulLat, lrLon, midLat, lonDpp / 2),
+                new Tile(depth + 1, midLon, midLat, lrLon, lrLat, lonDpp / 2),
+                new Tile(depth + 1, ulLon, midLat, midLon, lrLat, lonDpp / 2)};
+            for (Tile child : children) {
+                if (child.contains(lon, lat)) {
+                    return child;
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Compares contraction hierarchy routes on small synthetic graphs with plain A*. */
+public class TestContractionHierarchy {
+    private static final double DELTA = 1e-9;
+
+    /** Three nodes at one spot, joined only by zero-length edges, between two others. */
+    @Test
+    public void testZeroLengthEdges() {
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        builder.addNode(1, -122.250, 37.870);
+        builder.addNode(2, -122.251, 37.870);
+        builder.addNode(3, -122.251, 37.870);
+        builder.addNode(4, -122.251, 37.870);
+        builder.addNode(5, -122.252, 37.870);
+        builder.addEdge(1, 2, null);
+        builder.addEdge(2, 3, null);
+        builder.addEdge(3, 4, null);
+        builder.addEdge(4, 5, null);
+        CompactGraph g = builder.build();
+        assertMatchesAStar(g, ContractionHierarchy.build(g, 1), allPairs(g.size()));
+    }
+
+    /**
+     * A jittered grid with missing streets, nodes duplicated in place so that some edges have
+     * zero length, and streets added more than once.
+     */
+    @Test
+    public void testRandomGrid() {
+        Random random = new Random(61);
+        int side = 14;
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        for (int i = 0; i < side * side; i++) {
+            double lon = -122.26 + 0.001 * (i % side) + 0.0004 * random.nextDouble();
+            double lat = 37.86 + 0.001 * (i / side) + 0.0004 * random.nextDouble();
+            builder.addNode(i, lon, lat);
+            if (random.nextInt(4) == 0) {
+                builder.addNode(1000 + i, lon, lat);
+                builder.addEdge(i, 1000 + i, null);
+            }
+        }
+        for (int i = 0; i < side * side; i++) {
+            int right = i % side + 1 < side ? i + 1 : -1;
+            int up = i + side < side * side ? i + side : -1;
+            for (int j : new int[]{right, up}) {
+                if (j < 0 || random.nextInt(5) == 0) {
+                    continue;
+                }
+                /* Route some streets through the duplicate of an end when there is one. */
+                builder.addEdge(random.nextBoolean() ? i : 1000 + i, j, null);
+                builder.addEdge(i, j, null);
+                if (random.nextBoolean()) {
+                    builder.addEdge(j, i, null);
+                }
+            }
+        }
+        CompactGraph g = builder.build();
+        int[][] pairs = new int[2000][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new int[]{random.nextInt(g.size()), random.nextInt(g.size())};
+        }
+        assertMatchesAStar(g, ContractionHierarchy.build(g, 2), pairs);
+    }
+
+    /** Moving one node keeps the topology but must still make the stored hierarchy stale. */
+    @Test
+    public void testLoadRebuildsForMovedNode() throws Exception {
+        CompactGraph g = chain(-122.252);
+        CompactGraph moved = chain(-122.262);
+        File file = File.createTempFile("hierarchy", ".ch");
+        try {
+            assertTrue(file.delete());
+            assertNull(ContractionHierarchy.load(g, file.getPath(), false));
+            assertNotNull(ContractionHierarchy.load(g, file.getPath(), true));
+            assertTrue(ContractionHierarchy.read(file).matches(g));
+            assertNotNull(ContractionHierarchy.load(g, file.getPath(), false));
+
+            assertFalse(ContractionHierarchy.read(file).matches(moved));
+            assertNull(ContractionHierarchy.load(moved, file.getPath(), false));
+            ContractionHierarchy rebuilt = ContractionHierarchy.load(moved, file.getPath(), true);
+            assertTrue(rebuilt.matches(moved));
+            assertTrue(ContractionHierarchy.read(file).matches(moved));
+            assertMatchesAStar(moved, rebuilt, allPairs(moved.size()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Four nodes in a row and a direct road from 1 to 3, with node 3 at the given longitude. */
+    private static CompactGraph chain(double lon3) {
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        builder.addNode(1, -122.250, 37.870);
+        builder.addNode(2, -122.251, 37.871);
+        builder.addNode(3, lon3, 37.870);
+        builder.addNode(4, -122.253, 37.870);
+        builder.addEdge(1, 2, null);
+        builder.addEdge(2, 3, null);
+        builder.addEdge(3, 4, null);
+        builder.addEdge(1, 3, null);
+        return builder.build();
+    }
+
+    private static int[][] allPairs(int n) {
+        int[][] pairs = new int[n * n][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new int[]{i / n, i % n};
+        }
+        return pairs;
+    }
+
+    /** Checks that the unpacked routes are walks along edges, as short as the A* ones. */
+    private static void assertMatchesAStar(CompactGraph g, ContractionHierarchy ch,
+                                           int[][] pairs) {
+        SearchSpace forward = new SearchSpace(g.size());
+        SearchSpace backward = new SearchSpace(g.size());
+        for (int[] p : pairs) {
+            long[] expected = Router.shortestPath(g, p[0], p[1]);
+            long[] actual = ch.shortestPath(g, p[0], p[1], forward, backward);
+            String query = p[0] + " -> " + p[1];
+            assertEquals(query, expected.length == 0, actual.length == 0);
+            if (expected.length == 0) {
+                continue;
+            }
+            assertEquals(query, g.id(p[0]), actual[0]);
+            assertEquals(query, g.id(p[1]), actual[actual.length - 1]);
+            assertEquals(query, length(g, expected), length(g, actual), DELTA);
+        }
+    }
+
+    private static double length(CompactGraph g, long[] path) {
+        double length = 0;
+        for (int i = 1; i < path.length; i++) {
+            int e = g.edge(g.index(path[i - 1]), g.index(path[i]));
+            assertTrue(path[i - 1] + " and " + path[i] + " are not adjacent", e >= 0);
+            length += g.length(e);
+        }
+        return length;
+    }
+}
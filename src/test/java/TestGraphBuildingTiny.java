@@ -1,9 +1,13 @@
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.HashSet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * created by hug 4/9/2018
@@ -80,4 +84,79 @@ public class TestGraphBuildingTiny {
                 + "especially if your actual value is 46",
                 55L, graphTiny.closest(lon, lat));
     }
+
+    @Test
+    public void testCompactGraph() {
+        CompactGraph cg = graphTiny.compact();
+        int v = cg.index(63L);
+        assertEquals(63L, cg.id(v));
+        assertEquals(3, cg.degree(v));
+        for (int e = cg.begin(v); e < cg.end(v); e++) {
+            long w = cg.id(cg.target(e));
+            assertEquals(graphTiny.distance(63L, w), cg.length(e), 0.00001);
+            assertEquals(e, cg.edge(v, cg.target(e)));
+        }
+        assertEquals(-1, cg.index(64L));
+    }
+
+    @Test
+    public void testComponents() {
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        for (long id = 1; id <= 5; id++) {
+            builder.addNode(id, id, id);
+        }
+        builder.addEdge(1, 2, null);
+        builder.addEdge(2, 3, null);
+        builder.addEdge(4, 5, null);
+        CompactGraph cg = builder.build();
+        assertTrue(cg.connected(cg.index(1), cg.index(3)));
+        assertTrue(cg.connected(cg.index(5), cg.index(4)));
+        assertFalse(cg.connected(cg.index(1), cg.index(4)));
+
+        CompactGraph tiny = graphTiny.compact();
+        for (int v = 1; v < tiny.size(); v++) {
+            assertEquals(tiny.component(0), tiny.component(v));
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File source = new File(OSM_DB_PATH_TINY);
+        File snapshot = File.createTempFile("tiny-clean", ".graph");
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(graphTiny, source, snapshot);
+        GraphDB mapped = GraphSnapshot.read(source, snapshot);
+
+        assertEquals(TestGraphBuilding.countIterableItems(graphTiny.vertices()),
+                TestGraphBuilding.countIterableItems(mapped.vertices()));
+        for (long v : graphTiny.vertices()) {
+            assertEquals(graphTiny.lon(v), mapped.lon(v), 0.0);
+            assertEquals(graphTiny.lat(v), mapped.lat(v), 0.0);
+            HashSet<Long> expected = new HashSet<>();
+            HashSet<Long> actual = new HashSet<>();
+            for (long w : graphTiny.adjacent(v)) {
+                expected.add(w);
+                assertEquals(graphTiny.wayName(v, w), mapped.wayName(v, w));
+            }
+            for (long w : mapped.adjacent(v)) {
+                actual.add(w);
+            }
+            assertEquals(expected, actual);
+        }
+        assertEquals(graphTiny.locationNames(), mapped.locationNames());
+        for (int v = 0; v < graphTiny.compact().size(); v++) {
+            assertEquals(graphTiny.compact().component(v), mapped.compact().component(v));
+        }
+    }
+
+    @Test
+    public void testStaleSnapshotIsIgnored() throws Exception {
+        File source = new File(OSM_DB_PATH_TINY);
+        File snapshot = File.createTempFile("tiny-clean", ".graph");
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(graphTiny, source, snapshot);
+        File other = File.createTempFile("tiny-other", ".osm.xml");
+        other.deleteOnExit();
+        assertNull(GraphSnapshot.read(other, snapshot));
+    }
 }
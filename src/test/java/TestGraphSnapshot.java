@@ -0,0 +1,126 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Round-trips a small in-memory graph through a snapshot file and compares every lookup. */
+public class TestGraphSnapshot {
+    private static final String[] WORDS = {"north", "south", "hall", "gate", "park", "lot"};
+
+    private GraphDB graph;
+    private File source;
+    private File snapshot;
+    private Random random;
+
+    @Before
+    public void setUp() throws IOException {
+        random = new Random(2);
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        Tries names = new Tries();
+        for (long id = 1; id <= 500; id++) {
+            builder.addNode(id, -122.30 + 0.09 * random.nextDouble(),
+                    37.82 + 0.07 * random.nextDouble());
+            if (id > 1 && random.nextBoolean()) {
+                builder.addEdge(id - 1, id, random.nextBoolean() ? "Oxford Street" : null);
+            }
+            if (random.nextInt(3) == 0) {
+                builder.markNamed(id);
+                names.put(WORDS[random.nextInt(WORDS.length)] + " "
+                        + WORDS[random.nextInt(WORDS.length)], id);
+            }
+        }
+        graph = new GraphDB(builder.build(), names);
+        source = File.createTempFile("berkeley", ".osm");
+        snapshot = File.createTempFile("berkeley", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+        snapshot.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        GraphSnapshot.write(graph, source, snapshot);
+        GraphDB read = GraphSnapshot.read(source, snapshot);
+        assertNotNull(read);
+
+        assertEquals(graph.locationNames(), read.locationNames());
+        for (String name : graph.locationNames()) {
+            assertEquals(name, graph.locationIds(name), read.locationIds(name));
+        }
+        List<Long> ids = new ArrayList<>();
+        for (long id : graph.vertices()) {
+            ids.add(id);
+            assertEquals(graph.lon(id), read.lon(id), 0);
+            assertEquals(graph.lat(id), read.lat(id), 0);
+            assertEquals(iterate(graph.adjacent(id)), iterate(read.adjacent(id)));
+            for (long w : graph.adjacent(id)) {
+                assertEquals(graph.wayName(id, w), read.wayName(id, w));
+            }
+        }
+        assertEquals(ids, iterate(read.vertices()));
+        for (String prefix : new String[]{"", "n", "hal", "south g", "prak", "x"}) {
+            assertEquals(prefix, graph.getLocationsByPrefix(prefix),
+                    read.getLocationsByPrefix(prefix));
+        }
+        for (int i = 0; i < 200; i++) {
+            double lon = -122.30 + 0.09 * random.nextDouble();
+            double lat = 37.82 + 0.07 * random.nextDouble();
+            assertEquals(graph.closest(lon, lat), read.closest(lon, lat));
+            String name = graph.locationNames().get(random.nextInt(graph.locationNames().size()));
+            assertEquals(name, nodeIds(graph.getNodesByLocNameNear(name, 5, lon, lat)),
+                    nodeIds(read.getNodesByLocNameNear(name, 5, lon, lat)));
+            assertEquals(graph.getLocationsNear("pa", 5, 100, lon, lat, 0.5),
+                    read.getLocationsNear("pa", 5, 100, lon, lat, 0.5));
+        }
+    }
+
+    /** The file starts with the magic bytes as text, whatever the byte order of the rest. */
+    @Test
+    public void testMagic() throws IOException {
+        GraphSnapshot.write(graph, source, snapshot);
+        byte[] magic = new byte[8];
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+            file.readFully(magic);
+        }
+        assertEquals("BMGRAPH1", new String(magic, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testStaleSource() throws IOException {
+        GraphSnapshot.write(graph, source, snapshot);
+        Files.write(source.toPath(), new byte[]{1});
+        assertNull(GraphSnapshot.read(source, snapshot));
+    }
+
+    private static List<Long> iterate(Iterable<Long> ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Object> nodeIds(List<Map<String, Object>> nodes) {
+        List<Object> ids = new ArrayList<>();
+        for (Map<String, Object> node : nodes) {
+            ids.add(node.get("id"));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Checks KdTree queries against a linear great-circle scan. */
+public class TestKdTree {
+    private static final int N = 2000;
+
+    /** Returns the k nearest items by brute force, ties broken by the smaller item. */
+    private static int[] scan(double[] lons, double[] lats, double lon, double lat, int k) {
+        Integer[] order = new Integer[lons.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = Double.compare(GraphDB.distanceHelper(lat, lats[a], lon, lons[a]),
+                    GraphDB.distanceHelper(lat, lats[b], lon, lons[b]));
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        int[] result = new int[Math.min(k, order.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void testNearestMatchesScan() {
+        Random r = new Random(61);
+        int[] items = new int[N];
+        double[] lons = new double[N];
+        double[] lats = new double[N];
+        for (int i = 0; i < N; i++) {
+            items[i] = i;
+            /* Snap to a coarse grid so that duplicate points and exact ties show up. */
+            lons[i] = MapServer.ROOT_ULLON + Math.round(r.nextDouble() * 400) * 0.0002;
+            lats[i] = MapServer.ROOT_LRLAT + Math.round(r.nextDouble() * 300) * 0.0002;
+        }
+        KdTree tree = new KdTree(items, lons, lats);
+        for (int q = 0; q < 200; q++) {
+            double lon = MapServer.ROOT_ULLON - 0.01 + r.nextDouble() * 0.1;
+            double lat = MapServer.ROOT_LRLAT - 0.01 + r.nextDouble() * 0.08;
+            assertEquals(scan(lons, lats, lon, lat, 1)[0], tree.nearest(lon, lat));
+            assertArrayEquals(scan(lons, lats, lon, lat, 8), tree.nearest(lon, lat, 8));
+        }
+    }
+
+    @Test
+    public void testNearestFirstVisitsInOrder() {
+        Random r = new Random(62);
+        int[] items = new int[N];
+        double[] lons = new double[N];
+        double[] lats = new double[N];
+        for (int i = 0; i < N; i++) {
+            items[i] = i;
+            lons[i] = MapServer.ROOT_ULLON + r.nextDouble() * 0.08;
+            lats[i] = MapServer.ROOT_LRLAT + r.nextDouble() * 0.06;
+        }
+        KdTree tree = new KdTree(items, lons, lats);
+        for (int q = 0; q < 50; q++) {
+            double lon = MapServer.ROOT_ULLON - 0.01 + r.nextDouble() * 0.1;
+            double lat = MapServer.ROOT_LRLAT - 0.01 + r.nextDouble() * 0.08;
+            int[] expected = scan(lons, lats, lon, lat, N);
+            int[] visited = new int[N];
+            int[] count = {0};
+            tree.nearestFirst(lon, lat, (item, distance) -> {
+                assertEquals(GraphDB.distanceHelper(lat, lats[item], lon, lons[item]), distance,
+                        0);
+                visited[count[0]++] = item;
+                return true;
+            });
+            assertArrayEquals(expected, visited);
+
+            /* Stopping early sees just the nearest items. */
+            count[0] = 0;
+            tree.nearestFirst(lon, lat, (item, distance) -> ++count[0] < 5);
+            assertEquals(5, count[0]);
+        }
+    }
+
+    @Test
+    public void testEmptyAndSmallTrees() {
+        KdTree empty = new KdTree(new int[0], new double[0], new double[0]);
+        assertEquals(-1, empty.nearest(0, 0));
+        KdTree one = new KdTree(new int[] {7}, new double[] {0.5}, new double[] {38.5});
+        assertArrayEquals(new int[] {7}, one.nearest(0, 0, 3));
+    }
+}
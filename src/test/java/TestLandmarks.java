@@ -0,0 +1,168 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests ALT routes and the landmark file on a synthetic graph against plain Dijkstra. */
+public class TestLandmarks {
+    private static final double DELTA = 1e-9;
+
+    private CompactGraph graph;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        graph = grid(0);
+        random = new Random(7);
+    }
+
+    /**
+     * A jittered grid with missing streets, so that some vertices are cut off. The first
+     * column is moved west by shift degrees, which changes edge lengths but not topology.
+     */
+    private static CompactGraph grid(double shift) {
+        Random random = new Random(7);
+        int side = 20;
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        for (int i = 0; i < side * side; i++) {
+            double lon = -122.26 + 0.001 * (i % side) + 0.0004 * random.nextDouble();
+            builder.addNode(i, i % side == 0 ? lon - shift : lon,
+                    37.86 + 0.001 * (i / side) + 0.0004 * random.nextDouble());
+        }
+        for (int i = 0; i < side * side; i++) {
+            if (i % side + 1 < side && random.nextInt(4) > 0) {
+                builder.addEdge(i, i + 1, null);
+            }
+            if (i + side < side * side && random.nextInt(4) > 0) {
+                builder.addEdge(i, i + side, null);
+            }
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testAltMatchesDijkstra() {
+        Landmarks landmarks = Landmarks.build(graph, 6, 2);
+        for (int i = 0; i < 1000; i++) {
+            int start = random.nextInt(graph.size());
+            int end = random.nextInt(graph.size());
+            double[] expected = dijkstra(graph, start);
+            long[] path = Router.shortestPath(graph, landmarks, start, end);
+            String query = start + " -> " + end;
+            if (expected[end] == Double.POSITIVE_INFINITY) {
+                assertEquals(query, 0, path.length);
+                continue;
+            }
+            assertEquals(query, graph.id(start), path[0]);
+            assertEquals(query, graph.id(end), path[path.length - 1]);
+            assertEquals(query, expected[end], length(graph, path), DELTA);
+            assertTrue(query, landmarks.lowerBound(start, end) <= expected[end]);
+        }
+    }
+
+    @Test
+    public void testLoadReusesFile() throws Exception {
+        File file = File.createTempFile("landmarks", ".alt");
+        try {
+            assertTrue(file.delete());
+            Landmarks built = Landmarks.load(graph, file.getPath(), 4, 1);
+            assertTrue(file.isFile());
+            Landmarks read = Landmarks.read(file);
+            assertTrue(read.matches(graph));
+            assertEquals(built.count(), read.count());
+            for (int i = 0; i < built.count(); i++) {
+                assertEquals(built.landmark(i), read.landmark(i));
+            }
+            for (int i = 0; i < 200; i++) {
+                int v = random.nextInt(graph.size());
+                int t = random.nextInt(graph.size());
+                assertEquals(built.lowerBound(v, t), read.lowerBound(v, t), 0);
+            }
+
+            /* A different graph or landmark count rebuilds the file. */
+            CompactGraph.Builder builder = new CompactGraph.Builder();
+            builder.addNode(1, -122.25, 37.87);
+            builder.addNode(2, -122.26, 37.87);
+            builder.addEdge(1, 2, null);
+            CompactGraph other = builder.build();
+            assertFalse(read.matches(other));
+            assertTrue(Landmarks.load(other, file.getPath(), 4, 1).matches(other));
+            assertTrue(Landmarks.read(file).matches(other));
+            assertEquals(3, Landmarks.load(graph, file.getPath(), 3, 1).count());
+            assertEquals(3, Landmarks.read(file).count());
+
+            assertTrue(file.delete());
+            assertNull(Landmarks.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Landmarks stored for a graph whose road lengths have since changed are rebuilt. */
+    @Test
+    public void testLoadRebuildsForChangedLengths() throws Exception {
+        CompactGraph moved = grid(0.002);
+        assertEquals(graph.edgeSlots(), moved.edgeSlots());
+        File file = File.createTempFile("landmarks", ".alt");
+        try {
+            assertTrue(Landmarks.load(graph, file.getPath(), 4, 1).matches(graph));
+            assertFalse(Landmarks.read(file).matches(moved));
+            Landmarks landmarks = Landmarks.load(moved, file.getPath(), 4, 1);
+            assertTrue(landmarks.matches(moved));
+            assertTrue(Landmarks.read(file).matches(moved));
+            for (int i = 0; i < 300; i++) {
+                int start = random.nextInt(moved.size());
+                int end = random.nextInt(moved.size());
+                double expected = dijkstra(moved, start)[end];
+                long[] path = Router.shortestPath(moved, landmarks, start, end);
+                if (expected != Double.POSITIVE_INFINITY) {
+                    assertEquals(start + " -> " + end, expected, length(moved, path), DELTA);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Distances from source to every vertex. */
+    private static double[] dijkstra(CompactGraph g, int source) {
+        double[] dist = new double[g.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[]{0, source});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int v = (int) top[1];
+            if (top[0] > dist[v]) {
+                continue;
+            }
+            for (int e = g.begin(v); e < g.end(v); e++) {
+                int w = g.target(e);
+                if (dist[v] + g.length(e) < dist[w]) {
+                    dist[w] = dist[v] + g.length(e);
+                    queue.add(new double[]{dist[w], w});
+                }
+            }
+        }
+        return dist;
+    }
+
+    private static double length(CompactGraph g, long[] path) {
+        double length = 0;
+        for (int i = 1; i < path.length; i++) {
+            int e = g.edge(g.index(path[i - 1]), g.index(path[i]));
+            assertTrue(path[i - 1] + " and " + path[i] + " are not adjacent", e >= 0);
+            length += g.length(e);
+        }
+        return length;
+    }
+}
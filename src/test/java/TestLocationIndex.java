@@ -0,0 +1,130 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Tests word search over location names against a scan of every name. */
+public class TestLocationIndex {
+
+    @Test
+    public void testFindsLaterWords() {
+        LocationIndex index = new LocationIndex(Arrays.asList("bancroft library",
+                "doe library", "haas pavilion", "hall of health", "wheeler hall",
+                "wheeler hall annex"));
+        assertEquals(Arrays.asList("hall of health", "wheeler hall", "wheeler hall annex"),
+                index.search("hall", 10));
+        assertEquals(Arrays.asList("haas pavilion", "hall of health", "wheeler hall",
+                "wheeler hall annex"), index.search("ha", 10));
+        assertEquals(Arrays.asList("wheeler hall", "wheeler hall annex"),
+                index.search("wheeler ha", 10));
+        assertEquals(Collections.singletonList("wheeler hall annex"),
+                index.search("hall an", 10));
+        assertEquals(Collections.singletonList("bancroft library"), index.search("lib", 1));
+        assertEquals(Collections.emptyList(), index.search("whee hall", 10));
+        assertEquals(Collections.emptyList(), index.search("zoo", 10));
+        assertEquals(Collections.emptyList(), index.search("  ", 10));
+    }
+
+    @Test
+    public void testIntersect() {
+        int[] a = {3, 8, 9, 20, 40, 41};
+        int[] b = {1, 2, 3, 4, 5, 6, 7, 9, 10, 11, 12, 13, 14, 15, 16, 40, 50};
+        assertArrayEquals(new int[]{3, 9, 40}, intersect(a, b));
+        assertArrayEquals(new int[]{3, 9, 40}, intersect(b, a));
+        assertArrayEquals(new int[0], intersect(new int[]{60}, b));
+        assertArrayEquals(new int[0], intersect(a, new int[0]));
+        assertArrayEquals(new int[0], intersect(new int[]{0}, b));
+    }
+
+    /** Lists spanning many blocks, against a scan. */
+    @Test
+    public void testIntersectBlocks() {
+        Random random = new Random(64);
+        for (int round = 0; round < 50; round++) {
+            int[] a = randomSorted(random, 1 + random.nextInt(300), 20000);
+            int[] b = randomSorted(random, random.nextInt(5000), 20000);
+            List<Integer> expected = new ArrayList<>();
+            for (int x : a) {
+                if (Arrays.binarySearch(b, x) >= 0) {
+                    expected.add(x);
+                }
+            }
+            int[] actual = intersect(a, b);
+            assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int) expected.get(i), actual[i]);
+            }
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        List<Integer> ids = new ArrayList<>();
+        for (int id : b) {
+            ids.add(id);
+        }
+        int[] pool = new int[b.length + 5];
+        LocationIndex.encode(ids, pool, 5);
+        return LocationIndex.intersect(a, pool, 5, pool.length);
+    }
+
+    private static int[] randomSorted(Random random, int size, int bound) {
+        TreeSet<Integer> set = new TreeSet<>();
+        while (set.size() < size) {
+            set.add(random.nextInt(bound));
+        }
+        int[] result = new int[size];
+        int i = 0;
+        for (int x : set) {
+            result[i++] = x;
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatchesScan() {
+        Random random = new Random(23);
+        String[] vocabulary = {"north", "south", "hall", "hallway", "park", "parking", "lot",
+            "gate", "a", "ab"};
+        TreeSet<String> set = new TreeSet<>();
+        while (set.size() < 3000) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(5);
+            for (int i = 0; i < length; i++) {
+                name.append(i == 0 ? "" : " ").append(vocabulary[random.nextInt(
+                        vocabulary.length)]);
+            }
+            set.add(name.toString());
+        }
+        List<String> names = new ArrayList<>(set);
+        LocationIndex index = new LocationIndex(names);
+        for (String query : new String[]{"hall", "ha", "park lot", "lot par", "a", "a ab",
+            "north south g", "gate hall hallw", "x", "parking x"}) {
+            String[] tokens = query.split(" ");
+            List<String> expected = new ArrayList<>();
+            for (String name : names) {
+                List<String> words = Arrays.asList(name.trim().split(" +"));
+                boolean match = true;
+                for (int i = 0; i < tokens.length - 1; i++) {
+                    match &= words.contains(tokens[i]);
+                }
+                boolean begun = false;
+                for (String word : words) {
+                    begun |= word.startsWith(tokens[tokens.length - 1]);
+                }
+                if (match && begun) {
+                    expected.add(name);
+                }
+            }
+            assertEquals(query, expected, index.search(query, Integer.MAX_VALUE));
+            assertEquals(query, expected.subList(0, Math.min(5, expected.size())),
+                    index.search(query, 5));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests location search biased toward a point on a small in-memory graph, against sorting
+ * every match by its score.
+ */
+public class TestLocationsNear {
+    private static final String[] WORDS = {"north", "south", "hall", "gate", "park", "parking",
+        "lot", "library", "hill", "house"};
+    private static final double BIAS_MILES = 0.5;
+
+    private GraphDB graph;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(25);
+        CompactGraph.Builder builder = new CompactGraph.Builder();
+        Tries names = new Tries();
+        for (long id = 1; id <= 2000; id++) {
+            builder.addNode(id, -122.30 + 0.09 * random.nextDouble(),
+                    37.82 + 0.07 * random.nextDouble());
+            if (id > 1 && random.nextBoolean()) {
+                builder.addEdge(id - 1, id, null);
+            }
+            /* Few names, so that most are carried by many nodes. */
+            if (random.nextInt(3) == 0) {
+                String name = WORDS[random.nextInt(WORDS.length)] + " "
+                        + WORDS[random.nextInt(WORDS.length)];
+                builder.markNamed(id);
+                names.put(name, id);
+            }
+        }
+        graph = new GraphDB(builder.build(), names);
+    }
+
+    @Test
+    public void testNodesNearMatchSort() {
+        for (String name : graph.locationNames()) {
+            for (int limit : new int[]{1, 3, 10, 1000}) {
+                double lon = -122.30 + 0.09 * random.nextDouble();
+                double lat = 37.82 + 0.07 * random.nextDouble();
+                List<Long> expected = graph.locationIds(name);
+                expected.sort(Comparator.comparingDouble(id -> GraphDB.distanceHelper(lat,
+                        graph.lat(id), lon, graph.lon(id))));
+                expected = expected.subList(0, Math.min(limit, expected.size()));
+                List<Long> actual = new ArrayList<>();
+                for (Map<String, Object> node : graph.getNodesByLocNameNear(name, limit, lon,
+                        lat)) {
+                    actual.add((Long) node.get("id"));
+                }
+                assertEquals(name, expected, actual);
+            }
+        }
+        String name = graph.locationNames().get(0);
+        long id = graph.locationIds(name).get(0);
+        assertTrue(graph.getNodesByLocNameNear(name, 0, graph.lon(id), graph.lat(id)).isEmpty());
+        assertTrue(graph.getNodesByLocNameNear("nowhere", 5, -122.25, 37.85).isEmpty());
+    }
+
+    @Test
+    public void testLocationsNearMatchSort() {
+        for (String prefix : new String[]{"h", "ha", "hall", "north", "park", "pa", "lot g",
+            "librray", "x"}) {
+            for (int limit : new int[]{1, 3, 10, Tries.TOP_K}) {
+                double lon = -122.30 + 0.09 * random.nextDouble();
+                double lat = 37.82 + 0.07 * random.nextDouble();
+                assertEquals(prefix + " " + limit, bruteForce(prefix, limit, lon, lat),
+                        graph.getLocationsNear(prefix, limit, 5000, lon, lat, BIAS_MILES));
+            }
+        }
+    }
+
+    /** The candidates scored by rank plus the distance of their nearest node, stably sorted. */
+    private List<String> bruteForce(String prefix, int limit, double lon, double lat) {
+        List<String> candidates = graph.getLocationsByPrefix(prefix, Tries.TOP_K, 5000);
+        Map<String, Double> scores = new HashMap<>();
+        for (int rank = 0; rank < candidates.size(); rank++) {
+            double nearest = Double.POSITIVE_INFINITY;
+            for (long id : graph.locationIds(candidates.get(rank))) {
+                nearest = Math.min(nearest, GraphDB.distanceHelper(lat, graph.lat(id), lon,
+                        graph.lon(id)));
+            }
+            scores.put(candidates.get(rank), rank + nearest / BIAS_MILES);
+        }
+        List<String> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparingDouble(scores::get));
+        return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+}
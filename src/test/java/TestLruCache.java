@@ -0,0 +1,48 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests the byte budget, LRU order and counters of LruCache. */
+public class TestLruCache {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<Integer, String> cache = new LruCache<>(30, 1, s -> 10);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertEquals("a", cache.get(1));
+        cache.put(4, "d");
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals("d", cache.get(4));
+        assertEquals(1, cache.evictions());
+        assertEquals(30, cache.bytes());
+    }
+
+    @Test
+    public void testCountersAndReplacement() {
+        LruCache<Integer, String> cache = new LruCache<>(1000, 4, s -> s.length());
+        assertNull(cache.get(7));
+        cache.put(7, "seven");
+        cache.put(7, "7");
+        assertEquals("7", cache.get(7));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.bytes());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(7));
+    }
+
+    @Test
+    public void testOversizedValuesAreNotCached() {
+        LruCache<Integer, String> cache = new LruCache<>(8, 1, s -> s.length());
+        cache.put(1, "123456789");
+        assertNull(cache.get(1));
+        assertEquals(0, cache.evictions());
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+
+/** Decodes encoder output with ImageIO, for every filter and both serial and parallel. */
+public class TestPngEncoder {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+
+    @Test
+    public void testSerialRoundTrip() throws Exception {
+        int[] pixels = pixels();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PngEncoder png = new PngEncoder(os, WIDTH, HEIGHT);
+        png.writeRows(pixels, 0, 4);
+        png.writeRows(pixels, 4 * WIDTH, HEIGHT - 4);
+        png.finish();
+        assertDecodesTo(pixels, os.toByteArray());
+    }
+
+    @Test
+    public void testParallelStripsForEveryFilter() throws Exception {
+        int[] pixels = pixels();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            for (int level : new int[] {0, 1, 6, 9}) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                PngEncoder png = new PngEncoder(os, WIDTH, HEIGHT,
+                        new PngEncoder.Config(level, filter, pool));
+                /* More strips than the pool has threads, of uneven heights. */
+                for (int y = 0; y < HEIGHT; y += 3) {
+                    png.writeRows(pixels, y * WIDTH, Math.min(3, HEIGHT - y));
+                }
+                png.finish();
+                assertDecodesTo(pixels, os.toByteArray());
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAdler32Combine() {
+        byte[] data = new byte[200_000];
+        new Random(7).nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 head = new Adler32();
+        head.update(data, 0, 70_001);
+        Adler32 tail = new Adler32();
+        tail.update(data, 70_001, data.length - 70_001);
+        assertEquals(whole.getValue(), PngEncoder.adler32Combine(head.getValue(),
+                tail.getValue(), data.length - 70_001));
+    }
+
+    private static int[] pixels() {
+        Random r = new Random(42);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            /* Runs of flat color with noise, like map tiles with labels. */
+            pixels[i] = r.nextInt(4) == 0 ? r.nextInt(1 << 24) : 0xe8e0d8 + (i / 50);
+        }
+        return pixels;
+    }
+
+    private static void assertDecodesTo(int[] pixels, byte[] png) throws Exception {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(WIDTH, img.getWidth());
+        assertEquals(HEIGHT, img.getHeight());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(0xff000000 | pixels[y * WIDTH + x], img.getRGB(x, y));
+            }
+        }
+    }
+}
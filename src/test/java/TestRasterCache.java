@@ -0,0 +1,54 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests the keys and lookups of the raster response cache. */
+public class TestRasterCache {
+
+    private static Map<String, Object> rastered(String[][] grid) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("render_grid", grid);
+        result.put("depth", 2);
+        return result;
+    }
+
+    @Test
+    public void testKeys() {
+        Map<String, Object> a = rastered(new String[][]{{"d2_x1_y0.png", "d2_x2_y0.png"},
+            {"d2_x1_y1.png", "d2_x2_y1.png"}});
+        Map<String, Object> b = rastered(new String[][]{{"d2_x1_y0.png", "d2_x2_y0.png"},
+            {"d2_x1_y1.png", "d2_x2_y1.png"}});
+        Map<String, Object> c = rastered(new String[][]{{"d2_x1_y0.png"}, {"d2_x1_y1.png"}});
+        assertEquals(RasterCache.key(a, 3), RasterCache.key(b, 3));
+        assertNotEquals(RasterCache.key(a, 3), RasterCache.key(b, 4));
+        assertNotEquals(RasterCache.key(a, 3), RasterCache.key(c, 3));
+        assertEquals(RasterCache.key(a, 3), RasterCache.key(b, 3, false));
+        assertNotEquals(RasterCache.key(a, 3), RasterCache.key(b, 3, true));
+        RasterView view = new RasterView(10, 20, 300, 400, 145, 190, 0, 0, 0, 0);
+        assertEquals(RasterCache.key(a, 3, false, view), RasterCache.key(b, 3, false,
+                new RasterView(10, 20, 300, 400, 145, 190, 0, 0, 0, 0)));
+        assertNotEquals(RasterCache.key(a, 3, false, view), RasterCache.key(b, 3, false,
+                new RasterView(10, 20, 300, 400, 290, 380, 0, 0, 0, 0)));
+        assertNull(RasterCache.key(rastered(new String[][]{{"root.png"}}), 3));
+    }
+
+    @Test
+    public void testGetAndPut() {
+        RasterCache cache = new RasterCache(1 << 20);
+        Map<String, Object> a = rastered(new String[][]{{"d1_x0_y0.png"}});
+        RasterCache.CachedRaster raster = new RasterCache.CachedRaster(new byte[16], a);
+        cache.put(RasterCache.key(a, 0), raster);
+        assertSame(raster, cache.get(RasterCache.key(a, 0)));
+        assertNull(cache.get(RasterCache.key(a, 1)));
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(raster.json(), raster.json());
+        assertTrue(raster.json().contains("\"b64_encoded_image_data\":\"AAAA"));
+    }
+}
@@ -0,0 +1,58 @@
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+
+/** Compares parallel compositing against drawing the tiles one by one. */
+public class TestRasterCompositor {
+
+    @Test
+    public void testMatchesSerialDrawing() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        int size = 8;
+        String[][] grid = new String[3][4];
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 4; c++) {
+                BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+                Graphics g = tile.getGraphics();
+                g.setColor(new Color(r * 80, c * 60, (r + c) * 20));
+                g.fillRect(0, 0, size, size);
+                g.setColor(Color.WHITE);
+                g.drawLine(0, r, size - 1, c);
+                grid[r][c] = "d2_x" + c + "_y" + r + ".png";
+                File file = new File(dir, grid[r][c]);
+                file.deleteOnExit();
+                ImageIO.write(tile, "png", file);
+            }
+        }
+        /* A tile that does not exist stays black. */
+        grid[1][2] = "d2_x9_y9.png";
+
+        String root = dir.getPath() + File.separator;
+        BufferedImage actual = new RasterCompositor(new TileCache(root, 1 << 20), size, 4)
+                .composite(grid);
+        BufferedImage expected = new BufferedImage(4 * size, 3 * size,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = expected.getGraphics();
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 4; c++) {
+                File file = new File(dir, grid[r][c]);
+                if (file.exists()) {
+                    g.drawImage(ImageIO.read(file), c * size, r * size, null);
+                }
+            }
+        }
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import org.junit.Test;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Compares band-streamed rendering against drawing the route over the whole image. */
+public class TestRasterRenderer {
+    private static final int SIZE = 16;
+    private static final Color COLOR = new Color(108, 181, 230, 200);
+    private static final int[] ROUTE_X = {2, 30, 5, 20, 31};
+    private static final int[] ROUTE_Y = {1, 14, 30, 47, 16};
+
+    /** Flat colors of map-like tiles: land, park, water, road. */
+    private static final int[] MAP_COLORS = {0xf2efe9, 0xc8facc, 0xaad3df, 0xffffff};
+
+    /**
+     * Writes a 3 x 2 grid of tiles into dir and returns the grid. The tiles are gradients,
+     * or map-like patches of a few flat colors.
+     */
+    private static String[][] writeTiles(File dir, boolean flat) throws Exception {
+        String[][] grid = new String[3][2];
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 2; c++) {
+                BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < SIZE; y++) {
+                    for (int x = 0; x < SIZE; x++) {
+                        tile.setRGB(x, y, flat ? MAP_COLORS[(x / 4 + y / 5 + r + c) % 4]
+                                : (r * 70 + y * 5) << 16 | (c * 90 + x * 7) << 8 | x * y);
+                    }
+                }
+                grid[r][c] = "d2_x" + c + "_y" + r + ".png";
+                File file = new File(dir, grid[r][c]);
+                file.deleteOnExit();
+                ImageIO.write(tile, "png", file);
+            }
+        }
+        return grid;
+    }
+
+    /** A Rasterer result for grid, one longitude or latitude unit per pixel. */
+    private static Map<String, Object> rastered(String[][] grid) {
+        Map<String, Object> rastered = new HashMap<>();
+        rastered.put("render_grid", grid);
+        rastered.put("raster_ul_lon", 0.0);
+        rastered.put("raster_ul_lat", (double) grid.length * SIZE);
+        rastered.put("raster_lr_lon", (double) grid[0].length * SIZE);
+        rastered.put("raster_lr_lat", 0.0);
+        return rastered;
+    }
+
+    private static int[] shift(int[] coordinates, int by) {
+        int[] shifted = new int[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            shifted[i] = coordinates[i] - by;
+        }
+        return shifted;
+    }
+
+    /** The whole raster composited at once, with the route drawn over it. */
+    private static BufferedImage wholeImage(RasterCompositor compositor, String[][] grid) {
+        BufferedImage expected = compositor.composite(grid);
+        Graphics2D g2d = (Graphics2D) expected.getGraphics();
+        g2d.setColor(COLOR);
+        g2d.setStroke(new BasicStroke(5.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        for (int i = 1; i < ROUTE_X.length; i++) {
+            g2d.drawLine(ROUTE_X[i - 1], ROUTE_Y[i - 1], ROUTE_X[i], ROUTE_Y[i]);
+        }
+        return expected;
+    }
+
+    @Test
+    public void testMatchesWholeImage() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[][] grid = writeTiles(dir, false);
+        /* A tile that does not exist stays black. */
+        grid[2][0] = "d2_x9_y9.png";
+
+        RasterCompositor compositor =
+                new RasterCompositor(new TileCache(dir.getPath() + File.separator, 1 << 20),
+                        SIZE, 2);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new RasterRenderer(compositor, SIZE, COLOR, 5.0f).render(grid,
+                RasterView.full(rastered(grid), SIZE), ROUTE_X, ROUTE_Y, false, os);
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+
+        BufferedImage expected = wholeImage(compositor, grid);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedStaysClose() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[][] grid = writeTiles(dir, true);
+
+        TileCache tiles = new TileCache(dir.getPath() + File.separator, 1 << 20);
+        RasterCompositor compositor = new RasterCompositor(tiles, SIZE, 2);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new RasterRenderer(compositor, SIZE, COLOR, 5.0f, PngEncoder.Config.DEFAULT,
+                new PaletteCache(tiles, COLOR)).render(grid, RasterView.full(rastered(grid), SIZE),
+                ROUTE_X, ROUTE_Y, true, os);
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, actual.getType());
+
+        /* Map and route pixels alike are within a few levels of their truecolor values. */
+        BufferedImage expected = wholeImage(compositor, grid);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                    assertTrue("pixel " + x + ", " + y + " off by " + diff, diff <= 8);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testViewportCrop() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[][] grid = writeTiles(dir, false);
+        Map<String, Double> query = new HashMap<>();
+        query.put("ullon", 5.0);
+        query.put("lrlon", 25.0);
+        query.put("ullat", 40.0);
+        query.put("lrlat", 10.0);
+        query.put("w", 20.0);
+        query.put("h", 30.0);
+        RasterView view = RasterView.viewport(rastered(grid), query, SIZE);
+        assertEquals(5, view.left, 1e-9);
+        assertEquals(8, view.top, 1e-9);
+        assertEquals(20, view.width);
+        assertEquals(30, view.height);
+        assertEquals(40, view.ulLat, 1e-9);
+
+        /* At one query pixel per tile pixel, the view is a plain cut-out of the raster. */
+        RasterCompositor compositor =
+                new RasterCompositor(new TileCache(dir.getPath() + File.separator, 1 << 20),
+                        SIZE, 2);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new RasterRenderer(compositor, SIZE, COLOR, 5.0f).render(grid, view,
+                shift(ROUTE_X, 5), shift(ROUTE_Y, 8), false, os);
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        BufferedImage expected = wholeImage(compositor, grid).getSubimage(5, 8, 20, 30);
+        assertEquals(20, actual.getWidth());
+        assertEquals(30, actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testViewportScalesAndClips() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[][] grid = writeTiles(dir, true);
+        /* Half of the query box lies left of the map, and it is shown at half size. */
+        Map<String, Double> query = new HashMap<>();
+        query.put("ullon", -32.0);
+        query.put("lrlon", 32.0);
+        query.put("ullat", 48.0);
+        query.put("lrlat", 0.0);
+        query.put("w", 32.0);
+        query.put("h", 24.0);
+        RasterView view = RasterView.viewport(rastered(grid), query, SIZE);
+        assertEquals(0, view.ulLon, 1e-9);
+        assertEquals(16, view.width);
+        assertEquals(24, view.height);
+
+        RasterCompositor compositor =
+                new RasterCompositor(new TileCache(dir.getPath() + File.separator, 1 << 20),
+                        SIZE, 2);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new RasterRenderer(compositor, SIZE, COLOR, 5.0f).render(grid, view, new int[0],
+                new int[0], false, os);
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(16, actual.getWidth());
+        assertEquals(24, actual.getHeight());
+        /* The middle of a flat patch keeps its color. */
+        BufferedImage whole = compositor.composite(grid);
+        assertEquals(whole.getRGB(2, 2), actual.getRGB(1, 1));
+    }
+}
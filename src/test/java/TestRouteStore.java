@@ -0,0 +1,55 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests the ids, lookups and expiry of RouteStore. */
+public class TestRouteStore {
+
+    @Test
+    public void testPutAndGet() {
+        RouteStore store = new RouteStore(1 << 20, 1000);
+        long[] a = {1, 2, 3};
+        long[] b = {4, 5};
+        long idA = store.put(a);
+        long idB = store.put(b);
+        assertNotEquals(idA, idB);
+        assertNotEquals(RouteStore.NO_ROUTE, idA);
+        assertArrayEquals(a, store.get(idA));
+        assertArrayEquals(b, store.get(idB));
+        assertNull(store.get(RouteStore.NO_ROUTE));
+
+        store.remove(idA);
+        assertNull(store.get(idA));
+        assertArrayEquals(b, store.get(idB));
+    }
+
+    @Test
+    public void testExpiresUnlessUsed() {
+        long[] now = {0};
+        RouteStore store = new RouteStore(1 << 20, 100, () -> now[0]);
+        long used = store.put(new long[]{1, 2});
+        long unused = store.put(new long[]{3, 4});
+        now[0] = 60;
+        assertArrayEquals(new long[]{1, 2}, store.get(used));
+        now[0] = 120;
+        /* Using a route pushes its expiry back. */
+        assertArrayEquals(new long[]{1, 2}, store.get(used));
+        assertNull(store.get(unused));
+        now[0] = 220;
+        assertNull(store.get(used));
+    }
+
+    @Test
+    public void testFormatAndParse() {
+        for (long id : new long[]{1, 0xabcdefL, -1, Long.MIN_VALUE}) {
+            assertEquals(id, RouteStore.parse(RouteStore.format(id)));
+        }
+        assertEquals(RouteStore.NO_ROUTE, RouteStore.parse(null));
+        assertEquals(RouteStore.NO_ROUTE, RouteStore.parse(""));
+        assertEquals(RouteStore.NO_ROUTE, RouteStore.parse("xyz"));
+        assertEquals(RouteStore.NO_ROUTE, RouteStore.parse("12345678901234567"));
+    }
+}
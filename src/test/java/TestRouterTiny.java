@@ -5,6 +5,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by hug, 4/9/2018. Basic tests for A* on the tiny graph.
@@ -63,4 +65,85 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testRepeatedQueriesReuseSearchSpace() {
+        for (int i = 0; i < 3; i++) {
+            test22to66();
+            test41to46();
+            test66to55();
+        }
+        long[] self = Router.shortestPath(graphTiny.compact(),
+                graphTiny.closestIndex(0.2, 38.2), graphTiny.closestIndex(0.2, 38.2));
+        assertEquals(1, self.length);
+        assertEquals(22L, self[0]);
+    }
+
+    @Test
+    public void testBidirectionalMatchesAStar() {
+        double[][] queries = {{0.2, 38.2, 0.6, 38.6}, {0.2, 38.2, 0.1, 38.1},
+            {0.4, 38.1, 0.4, 38.6}, {0.6, 38.6, 0.5, 38.5}, {0.1, 38.1, 0.5, 38.5}};
+        for (double[] q : queries) {
+            assertEquals(Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3]),
+                    Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3],
+                            Router.Mode.BIDIRECTIONAL));
+        }
+    }
+
+    @Test
+    public void testContractionHierarchyMatchesAStar() {
+        GraphDB graph = new GraphDB(OSM_DB_PATH_TINY);
+        graph.setHierarchy(ContractionHierarchy.build(graph.compact(), 2));
+        double[][] queries = {{0.2, 38.2, 0.6, 38.6}, {0.2, 38.2, 0.1, 38.1},
+            {0.4, 38.1, 0.4, 38.6}, {0.6, 38.6, 0.5, 38.5}, {0.1, 38.1, 0.5, 38.5}};
+        for (double[] q : queries) {
+            assertEquals(Router.shortestPath(graph, q[0], q[1], q[2], q[3]),
+                    Router.shortestPath(graph, q[0], q[1], q[2], q[3], Router.Mode.CH));
+        }
+    }
+
+    @Test
+    public void testLandmarksMatchAStar() {
+        GraphDB graph = new GraphDB(OSM_DB_PATH_TINY);
+        graph.setLandmarks(Landmarks.build(graph.compact(), 3, 2));
+        double[][] queries = {{0.2, 38.2, 0.6, 38.6}, {0.2, 38.2, 0.1, 38.1},
+            {0.4, 38.1, 0.4, 38.6}, {0.6, 38.6, 0.5, 38.5}, {0.1, 38.1, 0.5, 38.5}};
+        for (double[] q : queries) {
+            assertEquals(Router.shortestPath(graph, q[0], q[1], q[2], q[3]),
+                    Router.shortestPath(graph, q[0], q[1], q[2], q[3], Router.Mode.ALT));
+        }
+    }
+
+    @Test
+    public void testRouteCacheReusesSnappedRoutes() {
+        RouteCache cache = new RouteCache(1 << 20);
+        RouteCache.CachedRoute first = cache.route(graphTiny, 0.2, 38.2, 0.6, 38.6,
+                Router.Mode.ASTAR);
+        /* Nearby points snap to the same vertices, so this is a hit. */
+        RouteCache.CachedRoute second = cache.route(graphTiny, 0.21, 38.19, 0.59, 38.61,
+                Router.Mode.ASTAR);
+        assertEquals(first, second);
+        assertEquals(RouteCache.toList(first.path),
+                Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6));
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(1L, cache.stats().get("misses"));
+        cache.invalidateAll();
+        cache.route(graphTiny, 0.2, 38.2, 0.6, 38.6, Router.Mode.ASTAR);
+        assertEquals(2L, cache.stats().get("misses"));
+    }
+
+    @Test
+    public void testExhaustedBudgetGivesUp() {
+        CompactGraph cg = graphTiny.compact();
+        int start = cg.index(41L);
+        int end = cg.index(46L);
+        for (Router.Mode mode : Router.Mode.values()) {
+            SearchBudget tight = new SearchBudget(1, Long.MAX_VALUE);
+            assertEquals(0, Router.shortestPath(graphTiny, start, end, mode, tight).length);
+            assertTrue(tight.exhausted());
+            SearchBudget ample = new SearchBudget(1000, 1000);
+            assertEquals(4, Router.shortestPath(graphTiny, start, end, mode, ample).length);
+            assertFalse(ample.exhausted());
+        }
+    }
 }
@@ -0,0 +1,40 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/** Tests decoding, normalization and reuse of cached tiles. */
+public class TestTileCache {
+
+    @Test
+    public void testTilesAreDecodedOnce() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        BufferedImage png = new BufferedImage(4, 4, BufferedImage.TYPE_4BYTE_ABGR);
+        png.setRGB(1, 2, 0xff123456);
+        File file = new File(dir, "d2_x3_y1.png");
+        file.deleteOnExit();
+        ImageIO.write(png, "png", file);
+
+        TileCache cache = new TileCache(dir.getPath() + File.separator, 1 << 20);
+        BufferedImage tile = cache.get("d2_x3_y1.png");
+        assertEquals(BufferedImage.TYPE_INT_RGB, tile.getType());
+        assertEquals(0xff123456, tile.getRGB(1, 2));
+        assertSame(tile, cache.get(2, 3, 1));
+        assertEquals(0.5, cache.hitRatio(), 1e-9);
+        assertEquals(1, cache.stats().get("entries"));
+    }
+
+    @Test
+    public void testMissingTile() throws Exception {
+        TileCache cache = new TileCache("no-such-dir" + File.separator, 1 << 20);
+        assertNull(cache.get("d1_x0_y0.png"));
+        assertEquals(0, cache.stats().get("entries"));
+    }
+}
@@ -0,0 +1,240 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spark.HaltException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests the validators and responses of the tile endpoint against a temporary image root. */
+public class TestTileFiles {
+    private static final long MODIFIED = 1500000000000L;
+
+    private File root;
+    private byte[] tile;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("tiles").toFile();
+        tile = new byte[3000];
+        for (int i = 0; i < tile.length; i++) {
+            tile[i] = (byte) (i * 31);
+        }
+        File file = new File(root, "d2_x1_y3.png");
+        Files.write(file.toPath(), tile);
+        assertTrue(file.setLastModified(MODIFIED));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : root.listFiles()) {
+            file.delete();
+        }
+        root.delete();
+    }
+
+    @Test
+    public void testEtag() {
+        assertEquals("\"ff-3e8\"", TileFiles.etag(255, 1000));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String etag = TileFiles.etag(255, 1000);
+        assertTrue(TileFiles.matches(etag, etag));
+        assertTrue(TileFiles.matches("\"x\", " + etag, etag));
+        assertTrue(TileFiles.matches("W/" + etag, etag));
+        assertTrue(TileFiles.matches("*", etag));
+        assertFalse(TileFiles.matches("\"ff-3e9\"", etag));
+    }
+
+    @Test
+    public void testServe() throws IOException {
+        Exchange ok = serve("2", "1", "3.png");
+        assertEquals(200, ok.status);
+        assertEquals("image/png", ok.type);
+        assertEquals(TileFiles.etag(tile.length, MODIFIED), ok.headers.get("ETag"));
+        assertEquals("public, max-age=86400", ok.headers.get("Cache-Control"));
+        assertEquals(MODIFIED, ok.dates.get("Last-Modified").longValue());
+        assertEquals(tile.length, ok.contentLength);
+        assertArrayEquals(tile, ok.body.toByteArray());
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+        String etag = TileFiles.etag(tile.length, MODIFIED);
+        Exchange matching = serve("2", "1", "3.png", "If-None-Match", "\"x\", " + etag);
+        assertEquals(304, matching.status);
+        assertEquals(etag, matching.headers.get("ETag"));
+        assertEquals(0, matching.body.size());
+
+        /* A stale ETag wins over a current date. */
+        Exchange stale = serve("2", "1", "3.png", "If-None-Match", "\"0-0\"",
+                "If-Modified-Since", MODIFIED);
+        assertEquals(200, stale.status);
+
+        Exchange since = serve("2", "1", "3.png", "If-Modified-Since", MODIFIED + 999);
+        assertEquals(304, since.status);
+        assertEquals(0, since.body.size());
+        assertEquals(200, serve("2", "1", "3.png", "If-Modified-Since", MODIFIED - 1000).status);
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        assertNotFound("2", "1", "4.png");
+        assertNotFound("3", "1", "3.png");
+        assertNotFound("2", "9", "3.png");
+        assertNotFound("-2", "1", "3.png");
+        assertNotFound("2", "-1", "3.png");
+    }
+
+    @Test
+    public void testMalformedY() throws IOException {
+        assertNotFound("2", "1", "3.jpg");
+        assertNotFound("2", "1", "3png");
+        assertNotFound("2", "1", "x3");
+        assertNotFound("2", "1", ".png");
+        assertNotFound("2", "1", "");
+        assertNotFound("2", "1", null);
+    }
+
+    private void assertNotFound(String depth, String x, String y) throws IOException {
+        try {
+            Exchange exchange = serve(depth, x, y);
+            fail(depth + "/" + x + "/" + y + " answered " + exchange.status);
+        } catch (HaltException e) {
+            assertEquals(404, e.statusCode());
+        }
+    }
+
+    /** Serves the tile with the given path parameters and request headers, name then value. */
+    private Exchange serve(String depth, String x, String y, Object... headers)
+            throws IOException {
+        Map<String, String> params = new HashMap<>();
+        params.put(":depth", depth);
+        params.put(":x", x);
+        params.put(":y", y);
+        Map<String, Object> requestHeaders = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            requestHeaders.put((String) headers[i], headers[i + 1]);
+        }
+        Exchange exchange = new Exchange();
+        assertEquals("", TileFiles.serve(root.getPath() + File.separator,
+                new TileRequest(params, requestHeaders), exchange));
+        return exchange;
+    }
+
+    /** A request with fixed path parameters and headers. */
+    private static class TileRequest extends spark.Request {
+        private final Map<String, String> params;
+        private final HttpServletRequest raw;
+
+        TileRequest(Map<String, String> params, Map<String, Object> headers) {
+            this.params = params;
+            raw = (HttpServletRequest) Proxy.newProxyInstance(
+                    HttpServletRequest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getHeader":
+                                Object header = headers.get(args[0]);
+                                return header == null ? null : header.toString();
+                            case "getDateHeader":
+                                Object date = headers.get(args[0]);
+                                return date == null ? -1L : date;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                });
+        }
+
+        @Override
+        public String params(String param) {
+            return params.get(param);
+        }
+
+        @Override
+        public HttpServletRequest raw() {
+            return raw;
+        }
+    }
+
+    /** A response that records what the endpoint sets on it. */
+    private static class Exchange extends spark.Response {
+        int status = 200;
+        String type;
+        long contentLength = -1;
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, Long> dates = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final HttpServletResponse raw;
+
+        Exchange() {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener listener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            raw = (HttpServletResponse) Proxy.newProxyInstance(
+                    HttpServletResponse.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getOutputStream":
+                                return out;
+                            case "setDateHeader":
+                                dates.put((String) args[0], (Long) args[1]);
+                                return null;
+                            case "setContentLengthLong":
+                                contentLength = (Long) args[0];
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                });
+        }
+
+        @Override
+        public void status(int code) {
+            status = code;
+        }
+
+        @Override
+        public void type(String contentType) {
+            type = contentType;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public HttpServletResponse raw() {
+            return raw;
+        }
+    }
+}
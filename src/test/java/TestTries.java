@@ -0,0 +1,192 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests the radix trie of location names against a sorted map. */
+public class TestTries {
+
+    @Test
+    public void testSplitsEdges() {
+        Tries trie = new Tries();
+        trie.put("top dog", 1);
+        trie.put("top", 2);
+        trie.put("toppings", 3);
+        trie.put("top dog", 4);
+        trie.put("tap", 5);
+        assertEquals(Arrays.asList(1L, 4L), trie.getNodeByLoc("top dog"));
+        assertEquals(Collections.singletonList(2L), trie.getNodeByLoc("top"));
+        assertNull(trie.getNodeByLoc("to"));
+        assertNull(trie.getNodeByLoc("topping"));
+        assertNull(trie.getNodeByLoc("zebra"));
+        assertTrue(trie.keysThatMatch("tap"));
+        assertFalse(trie.keysThatMatch("t"));
+
+        assertEquals(Arrays.asList("tap", "top", "top dog", "toppings"),
+                trie.keysWithPrefix(""));
+        assertEquals(Arrays.asList("top", "top dog", "toppings"), trie.keysWithPrefix("to"));
+        /* The prefix may end inside an edge. */
+        assertEquals(Collections.singletonList("toppings"), trie.keysWithPrefix("topp"));
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("topz"));
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("toppingsz"));
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("x"));
+    }
+
+    @Test
+    public void testMatchesSortedMap() {
+        Random random = new Random(21);
+        Tries trie = new Tries();
+        TreeMap<String, List<Long>> expected = new TreeMap<>();
+        for (long id = 0; id < 5000; id++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int i = 0; i < length; i++) {
+                name.append(" abcd".charAt(random.nextInt(5)));
+            }
+            trie.put(name.toString(), id);
+            expected.computeIfAbsent(name.toString(), k -> new ArrayList<>()).add(id);
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), trie.keysWithPrefix(""));
+        for (Map.Entry<String, List<Long>> e : expected.entrySet()) {
+            assertEquals(e.getValue(), trie.getNodeByLoc(e.getKey()));
+        }
+        for (String prefix : new String[]{"a", "ab", "b c", "dd", "cab"}) {
+            List<String> withPrefix = new ArrayList<>(
+                    expected.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+            assertEquals(withPrefix, trie.keysWithPrefix(prefix));
+        }
+    }
+
+    @Test
+    public void testRanksTopNames() {
+        Tries trie = new Tries();
+        trie.put("cafe", 1);
+        trie.put("cafeteria", 2);
+        trie.put("cafeteria", 3);
+        trie.put("cab stand", 4);
+        trie.put("ca", 5);
+        trie.put("cafe", 6);
+        trie.put("cafe", 7);
+        /* The most nodes first, then the shortest name, then the first in order. */
+        assertEquals(Arrays.asList("cafe", "cafeteria", "ca", "cab stand"),
+                trie.keysWithPrefix("c", 10));
+        assertEquals(Arrays.asList("cafe", "cafeteria"), trie.keysWithPrefix("caf", 2));
+        assertEquals(Collections.singletonList("cafeteria"), trie.keysWithPrefix("cafet", 5));
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("cafe", 0));
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("d", 5));
+    }
+
+    @Test
+    public void testTopNamesMatchSortedRanking() {
+        Random random = new Random(22);
+        Tries trie = new Tries();
+        Map<String, Integer> counts = new TreeMap<>();
+        for (long id = 0; id < 20000; id++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                name.append("abc ".charAt(Math.min(3, (int) Math.abs(random.nextGaussian()
+                        * 1.5))));
+            }
+            trie.put(name.toString(), id);
+            counts.merge(name.toString(), 1, Integer::sum);
+        }
+        for (String prefix : new String[]{"", "a", "ab", "b", "c a", "aaa"}) {
+            List<String> ranked = new ArrayList<>();
+            for (String name : counts.keySet()) {
+                if (name.startsWith(prefix)) {
+                    ranked.add(name);
+                }
+            }
+            ranked.sort((x, y) -> !counts.get(x).equals(counts.get(y))
+                    ? counts.get(y) - counts.get(x)
+                    : x.length() != y.length() ? x.length() - y.length() : x.compareTo(y));
+            assertEquals(ranked.subList(0, Math.min(Tries.TOP_K, ranked.size())),
+                    trie.keysWithPrefix(prefix, Tries.TOP_K));
+        }
+    }
+
+    @Test
+    public void testFuzzyPrefix() {
+        Tries trie = new Tries();
+        trie.put("wheeler hall", 1);
+        trie.put("wheeler hall", 2);
+        trie.put("wheeler oak", 3);
+        trie.put("whole foods", 4);
+        trie.put("peets coffee", 5);
+        assertEquals(Collections.emptyList(), trie.keysWithPrefix("wheelr", 10));
+        assertEquals(Arrays.asList("wheeler hall", "wheeler oak"),
+                trie.fuzzyKeysWithPrefix("wheelr", 1, 10, 1000));
+        /* Exact matches need no edits and come first. */
+        assertEquals(Arrays.asList("whole foods", "wheeler hall", "wheeler oak"),
+                trie.fuzzyKeysWithPrefix("whol", 2, 10, 1000));
+        assertEquals(Collections.singletonList("peets coffee"),
+                trie.fuzzyKeysWithPrefix("pets cofe", 2, 10, 1000));
+        assertEquals(Collections.emptyList(), trie.fuzzyKeysWithPrefix("pets cofe", 1, 10, 1000));
+        /* Without visits left, nothing is found. */
+        assertEquals(Collections.emptyList(), trie.fuzzyKeysWithPrefix("wheelr", 1, 10, 1));
+    }
+
+    @Test
+    public void testFuzzyPrefixMatchesScan() {
+        Random random = new Random(24);
+        Tries trie = new Tries();
+        Map<String, Integer> counts = new TreeMap<>();
+        for (long id = 0; id < 60; id++) {
+            StringBuilder name = new StringBuilder();
+            int length = 3 + random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                name.append("abcd".charAt(random.nextInt(4)));
+            }
+            trie.put(name.toString(), id);
+            counts.merge(name.toString(), 1, Integer::sum);
+        }
+        for (String pre : new String[]{"abc", "dab", "cbad", "aaaa", "bdca"}) {
+            for (int edits = 1; edits <= 2; edits++) {
+                Map<String, Integer> distance = new TreeMap<>();
+                for (String name : counts.keySet()) {
+                    int d = prefixDistance(pre, name);
+                    if (d <= edits) {
+                        distance.put(name, d);
+                    }
+                }
+                List<String> expected = new ArrayList<>(distance.keySet());
+                expected.sort((x, y) -> !distance.get(x).equals(distance.get(y))
+                        ? distance.get(x) - distance.get(y)
+                        : !counts.get(x).equals(counts.get(y)) ? counts.get(y) - counts.get(x)
+                        : x.length() != y.length() ? x.length() - y.length() : x.compareTo(y));
+                int limit = Math.min(Tries.TOP_K, expected.size());
+                assertEquals(pre + " " + edits, expected.subList(0, Math.min(5, limit)),
+                        trie.fuzzyKeysWithPrefix(pre, edits, 5, Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    /** The fewest edits turning pre into a prefix of name. */
+    private static int prefixDistance(String pre, String name) {
+        int best = Integer.MAX_VALUE;
+        for (int end = 0; end <= name.length(); end++) {
+            String s = name.substring(0, end);
+            int[][] d = new int[pre.length() + 1][s.length() + 1];
+            for (int i = 0; i <= pre.length(); i++) {
+                for (int j = 0; j <= s.length(); j++) {
+                    d[i][j] = i == 0 ? j : j == 0 ? i : Math.min(d[i - 1][j - 1]
+                            + (pre.charAt(i - 1) == s.charAt(j - 1) ? 0 : 1),
+                            Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+                }
+            }
+            best = Math.min(best, d[pre.length()][s.length()]);
+        }
+        return best;
+    }
+}